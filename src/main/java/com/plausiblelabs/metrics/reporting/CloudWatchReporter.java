@@ -4,8 +4,8 @@ import com.amazonaws.auth.AWSCredentials;
 import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
 import com.amazonaws.services.cloudwatch.model.Dimension;
 import com.amazonaws.services.cloudwatch.model.MetricDatum;
-import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
 import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Gauge;
@@ -23,15 +23,26 @@ import com.yammer.metrics.stats.Snapshot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Reports metrics to <a href="http://aws.amazon.com/cloudwatch/">Amazon's CloudWatch</a> periodically.
@@ -61,7 +72,9 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
      */
     public static class Enabler {
         private final String namespace;
+        /** Only one of client and creds is set. */
         private final AmazonCloudWatchClient client;
+        private final AWSCredentials creds;
         private final List<DimensionAdder> dimensionAdders = new ArrayList<DimensionAdder>();
 
         private MetricsRegistry registry = Metrics.defaultRegistry();
@@ -80,6 +93,21 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
         private boolean sendJVMMemory = true;
         private boolean sendJVMThreadState;
         private boolean sendGC;
+        private boolean sendGCTelemetry;
+        private boolean sendJVMMemoryDetail;
+        private boolean coalesceSeries = true;
+        private int gaugeThreads;
+        private long gaugeTimeout;
+        private TimeUnit gaugeTimeoutUnit = TimeUnit.SECONDS;
+        private int slowestGauges;
+        private GaugeCache gaugeCache;
+        private final List<MetricSink> sinks = new ArrayList<MetricSink>();
+        private int sinkQueueCapacity;
+        private OverrunPolicy overrunPolicy;
+        private MetricPredicate lowPriority = NONE;
+        private final List<RollupRule> rollups = new ArrayList<RollupRule>();
+        private int datumBudget;
+        private final List<PriorityRule> priorities = new ArrayList<PriorityRule>();
 
         /**
          * Creates an Enabler that sends values in the given namespace to the given AWS account
@@ -87,7 +115,9 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
          * @param namespace the namespace. Must be non-null and not empty.
          */
         public Enabler(String namespace, AWSCredentials creds) {
-            this(namespace, new AmazonCloudWatchClient(creds));
+            this.namespace = namespace;
+            this.client = null;
+            this.creds = creds;
         }
 
         /**
@@ -98,6 +128,7 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
         public Enabler(String namespace, AmazonCloudWatchClient client) {
             this.namespace = namespace;
             this.client = client;
+            this.creds = null;
         }
 
         /**
@@ -182,6 +213,24 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
             return this;
         }
 
+        /**
+         * <p>If detailed JVM memory values should be sent. Disabled by default.</p>
+         *
+         * <p>When enabled, the direct and mapped buffer pools are sent as
+         * <code>jvm.memory.buffer_pool.&lt;pool&gt;.count</code>, <code>.capacity</code> and <code>.used</code>, and
+         * each memory pool, such as metaspace, as <code>jvm.memory.pool.&lt;pool&gt;.used</code>,
+         * <code>.committed</code>, <code>.peak_used</code> and, for pools with a maximum, <code>.usage</code> as a
+         * percentage of it. The code cache's pools are also totalled as <code>jvm.memory.code_cache.used</code>,
+         * <code>.max</code> and <code>.usage</code>. Pool names are lowercased with underscores, so metaspace is
+         * <code>jvm.memory.pool.metaspace.used</code>.</p>
+         * @param enabled if the values should be sent
+         * @return this Enabler.
+         */
+        public Enabler withJVMMemoryDetail(boolean enabled) {
+            this.sendJVMMemoryDetail = enabled;
+            return this;
+        }
+
         /**
          * If JVM thread counts and states should be sent. Disabled by default.
          * @param enabled if the values should be sent
@@ -202,6 +251,165 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
             return this;
         }
 
+        /**
+         * <p>If per-interval garbage collection telemetry should be sent. Disabled by default.</p>
+         *
+         * <p>When enabled, the reporter subscribes to the garbage collectors' notifications and sends
+         * <code>jvm.gc.pause</code> as a statistic set of the pauses in each interval, the 99th percentile pause as
+         * <code>jvm.gc.pause_percentile_0.99</code>, and the heap allocation and old generation promotion rates as
+         * <code>jvm.gc.allocation_rate</code> and <code>jvm.gc.promotion_rate</code>. Unlike
+         * {@link #withJVMGC}, these cover only the time since the previous report. The percentile and rates are a
+         * single value per interval, so they're sent as plain values rather than statistic sets, and the pause values
+         * are left out of intervals without a pause.</p>
+         * @param enabled if the values should be sent
+         * @return this Enabler.
+         */
+        public Enabler withJVMGCTelemetry(boolean enabled) {
+            this.sendGCTelemetry = enabled;
+            return this;
+        }
+
+        /**
+         * If values for the same series, ie the same name, unit and dimensions, sent in a single report should be
+         * combined into a single <code>StatisticSet</code>. This happens when metrics in the registry are sent under
+         * the same name with the same dimensions, such as a metric with the scope <code>scope</code> named
+         * <code>name</code> and an unscoped one named <code>scope.name</code> of the same group and type. Only the
+         * values in one reporter's report are combined; reporters for other registries aren't coalesced with it.
+         * Enabled by default.
+         * @param enabled if the values should be combined
+         * @return this Enabler.
+         */
+        public Enabler withSeriesCoalescing(boolean enabled) {
+            this.coalesceSeries = enabled;
+            return this;
+        }
+
+        /**
+         * <p>Evaluates gauges on a pool of the given number of threads rather than on the reporting thread, so a slow
+         * gauge doesn't delay the metrics after it. A gauge that doesn't produce a value within the timeout is logged
+         * and skipped for that report, and isn't evaluated again until its previous evaluation finishes. By default
+         * gauges are evaluated on the reporting thread without a timeout.</p>
+         *
+         * @param threads the number of threads to evaluate gauges on
+         * @param timeout how long a gauge may take before it's skipped
+         * @param unit the unit of the timeout
+         * @return this Enabler.
+         */
+        public Enabler withGaugeThreads(int threads, long timeout, TimeUnit unit) {
+            this.gaugeThreads = threads;
+            this.gaugeTimeout = timeout;
+            this.gaugeTimeoutUnit = unit;
+            return this;
+        }
+
+        /**
+         * Sends how long the given number of slowest gauges took to evaluate in each report as
+         * <code>&lt;gauge name&gt;.evaluationTime</code> in milliseconds. Use this to find the gauges that are slowing
+         * down reports. Disabled by default.
+         * @param count the number of gauges to send, or 0 to disable.
+         * @return this Enabler.
+         */
+        public Enabler withSlowestGauges(int count) {
+            this.slowestGauges = count;
+            return this;
+        }
+
+        /**
+         * Reads gauge values through the given cache, so costly gauges that don't change quickly are only evaluated
+         * once per their time-to-live. Pass the same cache to every Enabler reading a registry to have their reporters
+         * share evaluations. By default every gauge is evaluated on every report.
+         * @return this Enabler.
+         */
+        public Enabler withGaugeCache(GaugeCache cache) {
+            this.gaugeCache = cache;
+            return this;
+        }
+
+        /**
+         * <p>Keeps reports on schedule when one takes longer than the period between them, by applying the given policy
+         * to the reports that fall behind. Also sends <code>cloudwatch-reporter.lag</code>, how late each report
+         * started, and the number of reports that overran the period, were skipped and metrics that were shed since
+         * the previous report as <code>cloudwatch-reporter.overruns</code>, <code>.skipped_reports</code> and
+         * <code>.shed_metrics</code>.</p>
+         *
+         * <p>By default, a report starts a full period after the previous one finishes, so slow reports push every
+         * later report back.</p>
+         * @return this Enabler.
+         */
+        public Enabler withOverrunPolicy(OverrunPolicy policy) {
+            this.overrunPolicy = policy;
+            return this;
+        }
+
+        /**
+         * The metrics left out of reports that are behind schedule with {@link OverrunPolicy#SHED}. Defaults to none.
+         * @return this Enabler.
+         */
+        public Enabler withLowPriorityMetrics(MetricPredicate predicate) {
+            this.lowPriority = predicate;
+            return this;
+        }
+
+        /**
+         * <p>Combines the scoped metrics matching the given rule into a single series per group, type and name before
+         * they're sent, optionally along with the busiest scopes as their own series. Each metric is rolled up by the
+         * first matching rule. By default each scope is sent as its own series.</p>
+         *
+         * <p>The rolled up series are named and dimensioned as if the metrics had no scope, and are sent with the same
+         * rates, percentiles and summaries as any other metric of their kind.</p>
+         * @return this Enabler.
+         */
+        public Enabler withRollup(RollupRule rule) {
+            this.rollups.add(rule);
+            return this;
+        }
+
+        /**
+         * <p>Sends at most the given number of data in each report, to put a ceiling on what CloudWatch charges. When a
+         * report has more, the series with the highest priority are sent, as set with {@link #withPriority}, and among
+         * series of the same priority those whose value changed the most since they were last sent. Each report a
+         * series is left out raises its priority by one for the next, so every series is still sent now and then.</p>
+         *
+         * <p>Also sends <code>cloudwatch-reporter.deferred</code>, the number of series left out of each report, which
+         * takes one place in the budget. By default every datum is sent.</p>
+         * @param maxData the number of data to send per report, at least 2 so one series fits beside the deferred count
+         * @return this Enabler.
+         * @throws IllegalArgumentException if maxData is less than 2
+         */
+        public Enabler withDatumBudget(int maxData) {
+            if (maxData < 2) {
+                throw new IllegalArgumentException("The datum budget must leave room for a series beside the deferred count, but was " + maxData);
+            }
+            this.datumBudget = maxData;
+            return this;
+        }
+
+        /**
+         * Like {@link #withDatumBudget}, but limits the number of <code>PutMetricData</code> requests per report. Each
+         * request carries up to 20 data.
+         * @param requests the number of requests to make per report, at least 1
+         * @return this Enabler.
+         * @throws IllegalArgumentException if requests is less than 1
+         */
+        public Enabler withRequestBudget(int requests) {
+            if (requests < 1) {
+                throw new IllegalArgumentException("The request budget must be at least 1, but was " + requests);
+            }
+            return withDatumBudget(requests * CloudWatchSink.MAX_DATA_PER_REQUEST);
+        }
+
+        /**
+         * Gives the series of metrics matching the given predicate the given priority under a datum budget. Each metric
+         * takes the priority of the first matching predicate. Metrics matching none, and the JVM's and the reporter's
+         * own metrics, have priority 0.
+         * @param priority higher priorities are sent first
+         * @return this Enabler.
+         */
+        public Enabler withPriority(MetricPredicate predicate, int priority) {
+            this.priorities.add(new PriorityRule(predicate, priority));
+            return this;
+        }
+
         /**
          * Use the given registry to fetch metrics. Defaults to <code>Metrics.defaultRegistry()</code>
          * @return this Enabler.
@@ -256,7 +464,7 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
          * @return this Enabler.
          */
         public Enabler withEC2InstanceIdDimension(MetricPredicate predicate) {
-            return withDimensionAdder(new InstanceIdAdder(predicate));
+            return withDimensionAdder(predicate, new InstanceIdAdder());
         }
 
         /**
@@ -275,7 +483,7 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
          * @return this Enabler.
          */
         public Enabler withInstanceIdDimension(String instanceId, MetricPredicate predicate) {
-            return withDimensionAdder(new InstanceIdAdder(predicate, instanceId));
+            return withDimensionAdder(predicate, new InstanceIdAdder(instanceId));
         }
 
         /**
@@ -289,9 +497,20 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
         }
 
         /**
-         * If metrics will be sent to CloudWatch. Enabled by default. If disabled, the metrics that would be sent are
-         * logged instead. It's useful to disable CloudWatch and see if the expected metrics are being sent before
-         * incurring the monthly charge.
+         * Runs the given adder on the sent metrics matching the given predicate, and on JVM metrics. Prefer this to
+         * checking a predicate in the adder itself: the predicate is only evaluated when a metric is added to the
+         * registry rather than for every metric on every report.
+         *
+         * @return this Enabler.
+         */
+        public Enabler withDimensionAdder(MetricPredicate predicate, DimensionAdder adder) {
+            return withDimensionAdder(new PredicateDimensionAdder(predicate, adder));
+        }
+
+        /**
+         * If metrics will be sent to CloudWatch. Enabled by default. If disabled and no other sink is configured, a
+         * summary of each report is logged instead, with the metrics that would be sent at debug level. It's useful to
+         * disable CloudWatch and see if the expected metrics are being sent before incurring the monthly charge.
          *
          * @return this Enabler.
          */
@@ -300,14 +519,118 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
             return this;
         }
 
+        /**
+         * <p>Also writes the metrics to the given file in CloudWatch's Embedded Metric Format, for the CloudWatch agent
+         * to ship to CloudWatch Logs where the metrics are extracted. Each report is appended as one JSON line per set
+         * of metrics sharing the same dimensions, with the same names, units and values that would be sent to
+         * CloudWatch.</p>
+         *
+         * <p>Combine with <code>withCloudWatchEnabled(false)</code> to write the file instead of calling CloudWatch.</p>
+         *
+         * @param file the file to append to
+         * @param maxFileBytes the size at which the file is renamed with a <code>.1</code> suffix and a new one started
+         * @param backups the number of renamed files to keep
+         * @return this Enabler.
+         */
+        public Enabler withEMFLog(File file, long maxFileBytes, int backups) {
+            return withSink(new EMFLogSink(file, maxFileBytes, backups));
+        }
+
+        /**
+         * Also sends every report to the given sink. Sinks are sent the same data as CloudWatch, after naming, trimming
+         * and coalescing.
+         *
+         * @return this Enabler.
+         */
+        public Enabler withSink(MetricSink sink) {
+            this.sinks.add(sink);
+            return this;
+        }
+
+        /**
+         * <p>Gives each sink, including CloudWatch, its own queue of the given number of reports and its own thread to
+         * send them from. A slow or failing sink then holds up neither the reporter nor the other sinks, and reports
+         * arriving while a sink's queue is full are dropped for that sink. By default reports are sent to each sink in
+         * turn on the reporting thread.</p>
+         *
+         * <p>Also sends <code>cloudwatch-reporter.dropped_reports</code>, the number of reports dropped across all of
+         * the sinks since the previous report.</p>
+         *
+         * @param capacity the number of reports each sink may have waiting
+         * @return this Enabler.
+         */
+        public Enabler withSinkQueues(int capacity) {
+            this.sinkQueueCapacity = capacity;
+            return this;
+        }
+
         /**
          * Creates a reporter with the settings currently configured on this enabler.
          */
         public CloudWatchReporter build() {
-            return new CloudWatchReporter(registry, namespace, client, predicate, dimensionAdders,
-                                          sendToCloudWatch, percentilesToSend, sendOneMinute, sendFiveMinute,
-                                          sendFifteenMinute, sendMeterSummary, sendTimerLifetime, sendHistoLifetime,
-                                          sendJVMMemory, sendJVMThreadState, sendGC);
+            return build(false);
+        }
+
+        /**
+         * <p>Sets up a reporter for a short-lived JVM, such as a command line tool or cron job, that sends the metrics
+         * once as the JVM exits rather than periodically. Nothing is set up on the calling thread beyond the reporter
+         * itself: the CloudWatch client, when built from credentials, and the dimensions, such as the EC2 instance id,
+         * are prepared on a background thread while the application runs.</p>
+         *
+         * <p>At exit, a shutdown hook gathers the metrics and sends them with all of their requests at once, holding up
+         * the exit for at most the given deadline. Call {@link CloudWatchReporter#flush} on the returned reporter to
+         * send sooner.</p>
+         *
+         * @param deadline how long the JVM's exit may wait for the metrics to be sent
+         * @param unit the unit of the deadline
+         * @return the reporter.
+         */
+        public CloudWatchReporter enableOneShot(long deadline, TimeUnit unit) {
+            CloudWatchReporter reporter = build(true);
+            reporter.startOneShot(deadline, unit);
+            return reporter;
+        }
+
+        /**
+         * @param oneShot if the reporter will send once, at exit, so its CloudWatch requests should be sent at once
+         */
+        private CloudWatchReporter build(boolean oneShot) {
+            ExecutorService gaugeExecutor = null;
+            if (gaugeThreads > 0) {
+                // Not from the registry, which hands every reporter the first pool created under a name
+                gaugeExecutor = Executors.newFixedThreadPool(gaugeThreads, new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "cloudwatch-reporter-gauges-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            GaugeEvaluator gauges = new GaugeEvaluator(gaugeExecutor, gaugeThreads, gaugeTimeout, gaugeTimeoutUnit,
+                                                       slowestGauges, gaugeCache);
+            List<MetricSink> reporterSinks = new ArrayList<MetricSink>();
+            if (sendToCloudWatch) {
+                reporterSinks.add(client != null ? new CloudWatchSink(client, oneShot)
+                                                 : new CloudWatchSink(creds, oneShot));
+            }
+            reporterSinks.addAll(sinks);
+            if (reporterSinks.isEmpty()) {
+                reporterSinks.add(new LoggingSink());
+            }
+            if (sinkQueueCapacity > 0) {
+                for (int i = 0; i < reporterSinks.size(); i++) {
+                    reporterSinks.set(i, new QueuedSink(reporterSinks.get(i), sinkQueueCapacity));
+                }
+            }
+            return new CloudWatchReporter(registry, namespace, predicate, dimensionAdders, gauges, reporterSinks,
+                                          overrunPolicy, lowPriority, rollups, datumBudget, priorities,
+                                          percentilesToSend, sendOneMinute, sendFiveMinute, sendFifteenMinute,
+                                          sendMeterSummary, sendTimerLifetime, sendHistoLifetime, sendJVMMemory,
+                                          sendJVMThreadState, sendGC, sendGCTelemetry, sendJVMMemoryDetail,
+                                          coalesceSeries);
         }
 
         /**
@@ -322,14 +645,32 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
         }
     }
 
-    private final VirtualMachineMetrics vm = VirtualMachineMetrics.getInstance();
+    private static final MetricPredicate NONE = new MetricPredicate() {
+        @Override
+        public boolean matches(MetricName name, Metric metric) {
+            return false;
+        }
+    };
+
+    private static class PriorityRule {
+        final MetricPredicate predicate;
+        final int priority;
+
+        PriorityRule(MetricPredicate predicate, int priority) {
+            this.predicate = predicate;
+            this.priority = priority;
+        }
+    }
+
+    /** Fetched when JVM metrics are first sent, as setting it up costs a short-lived JVM noticeable startup time. */
+    private VirtualMachineMetrics vm;
     private final List<DimensionAdder> dimensionAdders;
     private final Set<MetricName> unsendable = new HashSet<MetricName>();
-    private final Set<MetricName> nonCloudWatchUnit = new HashSet<MetricName>();
+    private final PredicateMatchCache matchCache = new PredicateMatchCache();
     private final MetricPredicate predicate;
+    private final GaugeEvaluator gauges;
     private final String namespace;
-    private final AmazonCloudWatchClient client;
-    private final boolean sendToCloudWatch;
+    private final List<MetricSink> sinks;
 
     private final double[] percentilesToSend;
     private final boolean sendOneMinute, sendFiveMinute, sendFifteenMinute;
@@ -340,21 +681,80 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
     private final boolean sendJVMThreads;
     private final boolean sendJVMGC;
 
-    private PutMetricDataRequest putReq;
-
-    private CloudWatchReporter(MetricsRegistry registry, String namespace, AmazonCloudWatchClient client,
-                               MetricPredicate predicate, List<DimensionAdder> dimensionAdders,
-                               boolean sendToCloudWatch, double[] percentilesToSend, boolean sendOneMinute,
-                               boolean sendFiveMinute, boolean sendFifteenMinute, boolean sendMeterSummary,
-                               boolean sendTimerLifetime, boolean sendHistoLifetime, boolean sendJVMMemory,
-                               boolean sendJVMThreads, boolean sendJVMGC) {
+    /** Null if GC telemetry is disabled. */
+    private final GCTelemetry gcTelemetry;
+    /** Null if detailed memory values are disabled. */
+    private final JVMMemoryDetail memoryDetail;
+
+    /** Null if series coalescing is disabled, in which case data are added to pending as they're sent. */
+    private final SeriesBatcher batcher;
+    private final List<MetricDatum> pending = new ArrayList<MetricDatum>();
+
+    /** Null to schedule reports with a fixed delay between them and not track overruns. */
+    private final OverrunPolicy overrunPolicy;
+    private final MetricPredicate lowPriority;
+    /** Set once the reporter is started with an overrun policy. */
+    private long periodNanos, firstReportNanos;
+    private long reports;
+    private long lagNanos;
+    private boolean coalescing, shedding;
+    private long overruns, skippedReports, shedMetrics;
+    private boolean loggedOverrun;
+
+    /** Held for the whole of each report, as the state used while gathering one isn't thread safe. */
+    private final Object reportLock = new Object();
+    private final Object flushLock = new Object();
+    /** The flush waiting to start, which later requests join. */
+    private FlushRequest nextFlush;
+    private volatile boolean closed;
+    /** The one-shot reporter's exit hook, or null if it isn't one. */
+    private volatile Thread exitHook;
+
+    private final List<RollupRule> rollups;
+    /** The rules' predicates compiled against the registry, in the same order. */
+    private final List<MetricPredicate> rollupPredicates = new ArrayList<MetricPredicate>();
+
+    /** Null if there's no datum budget. */
+    private final DatumBudget budget;
+    /** The priority rules with their predicates compiled against the registry. */
+    private final List<PriorityRule> priorities = new ArrayList<PriorityRule>();
+    /** The priority of the metric being processed. */
+    private int currentPriority;
+
+    private CloudWatchReporter(MetricsRegistry registry, String namespace, MetricPredicate predicate,
+                               List<DimensionAdder> dimensionAdders, GaugeEvaluator gauges, List<MetricSink> sinks,
+                               OverrunPolicy overrunPolicy, MetricPredicate lowPriority, List<RollupRule> rollups,
+                               int datumBudget, List<PriorityRule> priorities, double[] percentilesToSend,
+                               boolean sendOneMinute, boolean sendFiveMinute, boolean sendFifteenMinute,
+                               boolean sendMeterSummary, boolean sendTimerLifetime, boolean sendHistoLifetime,
+                               boolean sendJVMMemory, boolean sendJVMThreads, boolean sendJVMGC,
+                               boolean sendGCTelemetry, boolean sendJVMMemoryDetail, boolean coalesceSeries) {
         super(registry, "cloudwatch-reporter");
-        this.predicate = predicate;
+        this.predicate = matchCache.compile(predicate);
+        this.gauges = gauges;
 
         this.namespace = namespace;
-        this.client = client;
-        this.dimensionAdders = dimensionAdders;
-        this.sendToCloudWatch = sendToCloudWatch;
+        this.sinks = sinks;
+        this.overrunPolicy = overrunPolicy;
+        this.lowPriority = matchCache.compile(lowPriority);
+        this.rollups = new ArrayList<RollupRule>(rollups);
+        for (RollupRule rule : rollups) {
+            rollupPredicates.add(matchCache.compile(rule));
+        }
+        // The deferred count is always sent, so it takes a place in the budget
+        this.budget = datumBudget > 0 ? new DatumBudget(datumBudget - 1) : null;
+        for (PriorityRule rule : priorities) {
+            this.priorities.add(new PriorityRule(matchCache.compile(rule.predicate), rule.priority));
+        }
+        // The Enabler's adders may be shared with other reporters, each with its own cache
+        this.dimensionAdders = new ArrayList<DimensionAdder>(dimensionAdders.size());
+        for (DimensionAdder adder : dimensionAdders) {
+            if (adder instanceof PredicateDimensionAdder) {
+                adder = ((PredicateDimensionAdder) adder).compile(matchCache);
+            }
+            this.dimensionAdders.add(adder);
+        }
+        registry.addListener(matchCache);
 
         this.percentilesToSend = percentilesToSend;
         this.sendOneMinute = sendOneMinute;
@@ -366,38 +766,349 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
         this.sendJVMMemory = sendJVMMemory;
         this.sendJVMThreads = sendJVMThreads;
         this.sendJVMGC = sendJVMGC;
+        this.batcher = coalesceSeries ? new SeriesBatcher() : null;
+        this.memoryDetail = sendJVMMemoryDetail ? new JVMMemoryDetail() : null;
+        if (sendGCTelemetry) {
+            gcTelemetry = new GCTelemetry();
+            gcTelemetry.start();
+        } else {
+            gcTelemetry = null;
+        }
+    }
+
+    /**
+     * Starts reporting at the given period. With an overrun policy, reports are scheduled at a fixed rate so they stay
+     * on schedule, and the policy is applied to reports that fall behind.
+     */
+    @Override
+    public void start(long period, TimeUnit unit) {
+        if (overrunPolicy == null) {
+            super.start(period, unit);
+            return;
+        }
+        periodNanos = unit.toNanos(period);
+        firstReportNanos = System.nanoTime() + periodNanos;
+        // The registry hands back the executor our superclass schedules on, so shutdown still stops it
+        getMetricsRegistry().newScheduledThreadPool(1, "cloudwatch-reporter").scheduleAtFixedRate(this, period, period, unit);
+    }
+
+    @Override
+    public void shutdown() {
+        close();
+        super.shutdown();
+    }
+
+    @Override
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        close();
+        super.shutdown(timeout, unit);
+    }
+
+    private void close() {
+        closed = true;
+        if (exitHook != null) {
+            try {
+                // Otherwise it keeps the reporter around until exit, only to find it shut down
+                Runtime.getRuntime().removeShutdownHook(exitHook);
+            } catch (IllegalStateException alreadyExiting) {
+                // The JVM is exiting, so the hook has already been started
+            }
+        }
+        getMetricsRegistry().removeListener(matchCache);
+        if (gcTelemetry != null) {
+            gcTelemetry.stop();
+        }
+        // Waits for any report underway; later ones see closed and don't touch the sinks
+        synchronized (reportLock) {
+            gauges.shutdown();
+            for (MetricSink sink : sinks) {
+                try {
+                    sink.close();
+                } catch (Exception e) {
+                    LOG.warn("Error closing {}: {}", sink, e.getMessage());
+                }
+            }
+        }
     }
 
+    /**
+     * Runs a scheduled report. Safe to call from any thread; reports are run one at a time.
+     */
     @Override
     public void run() {
-        putReq = new PutMetricDataRequest().withNamespace(namespace);
+        synchronized (reportLock) {
+            if (periodNanos > 0 && !startScheduledReport()) {
+                return;
+            }
+            long reportStart = System.nanoTime();
+            report(null);
+            if (periodNanos > 0 && System.nanoTime() - reportStart > periodNanos) {
+                overruns++;
+                if (!loggedOverrun) {
+                    LOG.warn("A CloudWatch report took longer than its period; applying the {} overrun policy. Further overruns won't be logged.", overrunPolicy);
+                    loggedOverrun = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Sends the current values of the metrics now rather than waiting for the next scheduled report, returning a
+     * future that completes once every sink has taken them. With {@link Enabler#withSinkQueues}, that's when each sink
+     * has sent them rather than when they were queued. The future fails if the metrics couldn't be gathered, or with the
+     * first exception thrown by a sink.</p>
+     *
+     * <p>May be called from any thread, whether or not the reporter is started. The flush runs on the reporter's thread
+     * after any report already underway. Flushes requested while another is waiting to start are combined with it and
+     * share its future, so a burst of requests only gathers the metrics once.</p>
+     */
+    public Future<Void> flushAsync() {
+        synchronized (flushLock) {
+            if (nextFlush == null) {
+                FlushRequest request = new FlushRequest();
+                if (closed) {
+                    request.acknowledgement.abort(new IllegalStateException("The reporter is shut down"));
+                    return request.acknowledgement;
+                }
+                try {
+                    getMetricsRegistry().newScheduledThreadPool(1, "cloudwatch-reporter").execute(request);
+                } catch (RejectedExecutionException e) {
+                    request.acknowledgement.abort(e);
+                    return request.acknowledgement;
+                }
+                nextFlush = request;
+            }
+            return nextFlush.acknowledgement;
+        }
+    }
+
+    /**
+     * Like {@link #flushAsync}, but waits for the flush to complete.
+     * @throws ExecutionException if the metrics couldn't be gathered or a sink failed to take them
+     */
+    public void flush() throws InterruptedException, ExecutionException {
+        flushAsync().get();
+    }
+
+    /**
+     * Prepares the dimensions and CloudWatch client in the background, and sends a report when the JVM exits.
+     */
+    private void startOneShot(final long deadline, final TimeUnit unit) {
+        Thread prefetch = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prepare();
+            }
+        }, "cloudwatch-reporter-prepare");
+        prefetch.setDaemon(true);
+        prefetch.setPriority(Thread.MIN_PRIORITY);
+        prefetch.start();
+        exitHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendAtExit(deadline, unit);
+            }
+        }, "cloudwatch-reporter-exit");
+        Runtime.getRuntime().addShutdownHook(exitHook);
+    }
+
+    /** Does the slow parts of the first report up front, so it's quick when it comes. */
+    private void prepare() {
         try {
-            Date timestamp = new Date();
-            sendVMMetrics(timestamp);
-            sendRegularMetrics(timestamp);
-            sendToCloudWatch();
-        } catch (Exception e) {
-            if (LOG.isDebugEnabled()) {
-                LOG.debug("Error writing to CloudWatch", e);
-            } else {
-                LOG.warn("Error writing to CloudWatch: {}", e.getMessage());
+            for (MetricSink sink : sinks) {
+                if (sink instanceof CloudWatchSink) {
+                    ((CloudWatchSink) sink).client();
+                }
             }
-        } finally {
-            putReq = null;
+            synchronized (reportLock) {
+                // Adders fetching their dimensions, like the EC2 instance id, cache them
+                jvmDimensions();
+                if (vm == null && (sendJVMMemory || sendJVMThreads || sendJVMGC)) {
+                    vm = VirtualMachineMetrics.getInstance();
+                }
+            }
+        } catch (Exception e) {
+            LOG.warn("Error preparing to report metrics at exit: {}", e.getMessage());
         }
     }
 
-    private void sendToCloudWatch() {
+    /** The shutdown hook sending the report at exit, or null if this isn't a one-shot reporter. */
+    Thread exitHook() {
+        return exitHook;
+    }
+
+    private void sendAtExit(long deadline, TimeUnit unit) {
         try {
-            if (sendToCloudWatch && !putReq.getMetricData().isEmpty()) {
-                client.putMetricData(putReq);
+            flushAsync().get(deadline, unit);
+        } catch (TimeoutException e) {
+            LOG.warn("Gave up sending metrics at exit after {} {}", deadline, unit);
+        } catch (ExecutionException e) {
+            LOG.warn("Error sending metrics at exit: {}", e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class FlushRequest implements Runnable {
+        final SinkAcknowledgement acknowledgement = new SinkAcknowledgement();
+
+        @Override
+        public void run() {
+            synchronized (flushLock) {
+                // Requests from here on need a report that starts after them
+                if (nextFlush == this) {
+                    nextFlush = null;
+                }
+            }
+            report(acknowledgement);
+        }
+    }
+
+    /**
+     * Gathers and sends a report, unless the reporter is shut down.
+     * @param acknowledgement told when the sinks have taken the report, or null if nothing's waiting for it
+     */
+    private void report(SinkAcknowledgement acknowledgement) {
+        synchronized (reportLock) {
+            if (closed) {
+                // Flushes and scheduled reports already queued when the reporter was shut down
+                if (acknowledgement != null) {
+                    acknowledgement.abort(new IllegalStateException("The reporter is shut down"));
+                }
+                return;
+            }
+            try {
+                Date timestamp = new Date();
+                List<Dimension> jvmDimensions = jvmDimensions();
+                sendVMMetrics(timestamp, jvmDimensions);
+                sendRegularMetrics(timestamp);
+                sendSlowestGauges(timestamp);
+                sendOverrunMetrics(timestamp, jvmDimensions);
+                sendDroppedReports(timestamp, jvmDimensions);
+                // Sinks may hold onto the data after returning, so they get their own copy of pending
+                List<MetricDatum> data = batcher != null ? batcher.drain() : new ArrayList<MetricDatum>(pending);
+                if (budget != null) {
+                    data = applyBudget(timestamp, data, jvmDimensions);
+                }
+                sendToSinks(data, acknowledgement);
+            } catch (Exception e) {
+                if (acknowledgement != null) {
+                    acknowledgement.abort(e);
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Error gathering metrics", e);
+                } else {
+                    LOG.warn("Error gathering metrics: {}", e.getMessage());
+                }
+            } finally {
+                pending.clear();
+                if (batcher != null) {
+                    batcher.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the overrun policy to a scheduled report. Returns false if the report should be skipped.
+     */
+    private boolean startScheduledReport() {
+        lagNanos = Math.max(0, System.nanoTime() - (firstReportNanos + reports++ * periodNanos));
+        if (lagNanos < periodNanos) {
+            coalescing = false;
+            shedding = false;
+            return true;
+        }
+        switch (overrunPolicy) {
+        case SKIP:
+            skippedReports++;
+            return false;
+        case COALESCE:
+            if (coalescing) {
+                skippedReports++;
+                return false;
+            }
+            coalescing = true;
+            return true;
+        default:
+            shedding = true;
+            return true;
+        }
+    }
+
+    /**
+     * Picks the data to send under the budget, and adds the number of series deferred in the place kept for it.
+     */
+    private List<MetricDatum> applyBudget(Date timestamp, List<MetricDatum> data, List<Dimension> dimensions) {
+        List<MetricDatum> selected = new ArrayList<MetricDatum>(budget.select(data));
+        selected.add(new MetricDatum()
+            .withTimestamp(timestamp)
+            .withValue((double) budget.deferred())
+            .withMetricName("cloudwatch-reporter.deferred")
+            .withDimensions(dimensions)
+            .withUnit(StandardUnit.Count));
+        return selected;
+    }
+
+    private void sendOverrunMetrics(Date timestamp, List<Dimension> dimensions) {
+        if (overrunPolicy == null) {
+            return;
+        }
+        sendValue(timestamp, "cloudwatch-reporter.lag", TimeUnit.NANOSECONDS.toMillis(lagNanos), StandardUnit.Milliseconds, dimensions);
+        sendValue(timestamp, "cloudwatch-reporter.overruns", overruns, StandardUnit.Count, dimensions);
+        sendValue(timestamp, "cloudwatch-reporter.skipped_reports", skippedReports, StandardUnit.Count, dimensions);
+        sendValue(timestamp, "cloudwatch-reporter.shed_metrics", shedMetrics, StandardUnit.Count, dimensions);
+        overruns = 0;
+        skippedReports = 0;
+        shedMetrics = 0;
+    }
+
+    private void sendDroppedReports(Date timestamp, List<Dimension> dimensions) {
+        boolean queued = false;
+        long dropped = 0;
+        for (MetricSink sink : sinks) {
+            if (sink instanceof QueuedSink) {
+                queued = true;
+                dropped += ((QueuedSink) sink).takeDropped();
+            }
+        }
+        if (queued) {
+            sendValue(timestamp, "cloudwatch-reporter.dropped_reports", dropped, StandardUnit.Count, dimensions);
+        }
+    }
+
+    private void sendToSinks(List<MetricDatum> data, SinkAcknowledgement acknowledgement) {
+        if (acknowledgement != null) {
+            acknowledgement.expect(data.isEmpty() ? 0 : sinks.size());
+        }
+        if (data.isEmpty()) {
+            return;
+        }
+        if (LOG.isDebugEnabled()) {
+            for (MetricDatum datum : data) {
+                LOG.debug("Sending {}", datum);
+            }
+        }
+        for (MetricSink sink : sinks) {
+            if (sink instanceof QueuedSink) {
+                ((QueuedSink) sink).send(namespace, data, acknowledgement);
+                continue;
+            }
+            try {
+                sink.send(namespace, data);
+                if (acknowledgement != null) {
+                    acknowledgement.accepted();
+                }
+            } catch (Exception e) {
+                if (acknowledgement != null) {
+                    acknowledgement.failed(e);
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Error writing to " + sink, e);
+                } else {
+                    LOG.warn("Error writing to {}: {}", sink, e.getMessage());
+                }
             }
-        } catch (RuntimeException re) {
-            LOG.warn("Failed writing to CloudWatch: {}", putReq);
-            throw re;
-        } finally {
-            // Be sure the putReq cleared; a failure indicates bad data, so we don't want to try again
-            putReq = new PutMetricDataRequest().withNamespace(namespace);
         }
     }
 
@@ -429,54 +1140,190 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
             }
         }
         // TODO limit to 10 dimensions
-        MetricDatum datum = new MetricDatum()
+        if (budget != null) {
+            budget.prioritize(name, unit.toString(), dimensions, currentPriority);
+        }
+        if (batcher != null) {
+            batcher.add(timestamp, name, unit, dimensions, value);
+            return;
+        }
+        pending.add(new MetricDatum()
             .withTimestamp(timestamp)
             .withValue(value)
             .withMetricName(name)
             .withDimensions(dimensions)
-            .withUnit(unit);
-
-
+            .withUnit(unit));
+    }
 
-        if (!sendToCloudWatch) {
-            LOG.info("Not sending {}", datum);
-        } else if (LOG.isDebugEnabled()) {
-            LOG.debug("Sending {}", datum);
+    private void sendStatistics(Date timestamp, String name, double count, double sum, double min, double max,
+                                StandardUnit unit, List<Dimension> dimensions) {
+        if (budget != null) {
+            budget.prioritize(name, unit.toString(), dimensions, currentPriority);
         }
-        putReq.withMetricData(datum);
-
-        // Can only send 20 metrics at a time
-        if (putReq.getMetricData().size() == 20) {
-            sendToCloudWatch();
+        if (batcher != null) {
+            batcher.add(timestamp, name, unit, dimensions, count, sum, min, max);
+            return;
         }
+        pending.add(new MetricDatum()
+            .withTimestamp(timestamp)
+            .withStatisticValues(new StatisticSet()
+                                 .withSampleCount(count)
+                                 .withSum(sum)
+                                 .withMinimum(min)
+                                 .withMaximum(max))
+            .withMetricName(name)
+            .withDimensions(dimensions)
+            .withUnit(unit));
     }
 
     private void sendRegularMetrics(Date timestamp) {
-        for (Map.Entry<String, SortedMap<MetricName, Metric>> entry : getMetricsRegistry().groupedMetrics(predicate).entrySet()) {
-            for (Map.Entry<MetricName, Metric> subEntry : entry.getValue().entrySet()) {
-                final Metric metric = subEntry.getValue();
-                if (metric != null) {
-                    try {
-                        metric.processWith(this, subEntry.getKey(), timestamp);
-                    } catch (Exception ignored) {
-                        LOG.error("Error printing regular metrics:", ignored);
+        SortedMap<String, SortedMap<MetricName, Metric>> grouped = getMetricsRegistry().groupedMetrics(predicate);
+        if (shedding) {
+            // Before the gauges are started, so shed gauges aren't evaluated
+            shedLowPriority(grouped);
+        }
+        gauges.start(grouped);
+        Map<String, ScopeRollup> rolledUp = new LinkedHashMap<String, ScopeRollup>();
+        try {
+            for (Map.Entry<String, SortedMap<MetricName, Metric>> entry : grouped.entrySet()) {
+                for (Map.Entry<MetricName, Metric> subEntry : entry.getValue().entrySet()) {
+                    final Metric metric = subEntry.getValue();
+                    if (metric != null && !rollUp(subEntry.getKey(), metric, rolledUp)) {
+                        try {
+                            currentPriority = priorityOf(subEntry.getKey(), metric);
+                            metric.processWith(this, subEntry.getKey(), timestamp);
+                        } catch (Exception ignored) {
+                            LOG.error("Error printing regular metrics:", ignored);
+                        }
                     }
                 }
             }
+            for (ScopeRollup rollup : rolledUp.values()) {
+                try {
+                    sendRollup(timestamp, rollup);
+                } catch (Exception ignored) {
+                    LOG.error("Error printing rolled up metrics:", ignored);
+                }
+            }
+        } finally {
+            currentPriority = 0;
+            gauges.finish();
         }
     }
 
+    /** Removes the low priority metrics from the given metrics, which must be a copy of the registry's. */
+    private void shedLowPriority(SortedMap<String, SortedMap<MetricName, Metric>> grouped) {
+        for (SortedMap<MetricName, Metric> group : grouped.values()) {
+            for (Iterator<Map.Entry<MetricName, Metric>> it = group.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<MetricName, Metric> entry = it.next();
+                if (lowPriority.matches(entry.getKey(), entry.getValue())) {
+                    it.remove();
+                    shedMetrics++;
+                }
+            }
+        }
+    }
 
-    private void sendVMMetrics(Date timestamp) {
-        List<Dimension> dimensions = new ArrayList<Dimension>();
-        for (DimensionAdder adder : dimensionAdders) {
-            dimensions.addAll(adder.generateJVMDimensions());
+    private int priorityOf(MetricName name, Metric metric) {
+        for (PriorityRule rule : priorities) {
+            if (rule.predicate.matches(name, metric)) {
+                return rule.priority;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Adds the given metric to the rollup of the first rule matching it. Returns false if no rule matches, in which
+     * case the metric should be sent on its own.
+     */
+    private boolean rollUp(MetricName name, Metric metric, Map<String, ScopeRollup> rolledUp) {
+        if (rollups.isEmpty()) {
+            return false;
+        }
+        ScopeRollup.Kind kind = ScopeRollup.Kind.of(metric);
+        if (kind == null) {
+            return false;
+        }
+        for (int i = 0; i < rollups.size(); i++) {
+            if (!rollupPredicates.get(i).matches(name, metric)) {
+                continue;
+            }
+            // Scopes only share a series if they can be combined, so split on kind and units as well
+            StringBuilder key = new StringBuilder().append(i).append('|').append(kind).append('|')
+                .append(name.getGroup()).append('|').append(name.getType()).append('|').append(name.getName());
+            if (metric instanceof Metered) {
+                key.append('|').append(meterUnit((Metered) metric));
+            }
+            if (metric instanceof Timer) {
+                key.append('|').append(((Timer) metric).durationUnit());
+            }
+            ScopeRollup rollup = rolledUp.get(key.toString());
+            if (rollup == null) {
+                rollup = new ScopeRollup(new MetricName(name.getGroup(), name.getType(), name.getName()), metric, kind,
+                                         rollups.get(i).topScopes());
+                rolledUp.put(key.toString(), rollup);
+            }
+            rollup.add(name, metric);
+            return true;
+        }
+        return false;
+    }
+
+    private void sendRollup(Date timestamp, ScopeRollup rollup) throws Exception {
+        List<Dimension> dimensions = createDimensions(rollup.name, rollup.first);
+        String sanitizedName = sanitizeName(rollup.name);
+        currentPriority = priorityOf(rollup.name, rollup.first);
+        switch (rollup.kind) {
+        case COUNTER:
+            sendValue(timestamp, sanitizedName, rollup.count(), StandardUnit.Count, dimensions);
+            break;
+        case METER:
+            sendRates(timestamp, sanitizedName, (Metered) rollup.first, rollup.oneMinuteRate(),
+                      rollup.fiveMinuteRate(), rollup.fifteenMinuteRate(), rollup.count(), rollup.meanRate(),
+                      dimensions);
+            break;
+        case HISTOGRAM:
+            sendDistribution(timestamp, sanitizedName, rollup.snapshot(), sendHistoLifetime, rollup.min(),
+                             rollup.max(), rollup.mean(), rollup.stdDev(), UnitConverter.NONE, dimensions);
+            break;
+        case TIMER:
+            sendRates(timestamp, sanitizedName, (Metered) rollup.first, rollup.oneMinuteRate(),
+                      rollup.fiveMinuteRate(), rollup.fifteenMinuteRate(), rollup.count(), rollup.meanRate(),
+                      dimensions);
+            sendDistribution(timestamp, sanitizedName, rollup.snapshot(), sendTimerLifetime, rollup.min(),
+                             rollup.max(), rollup.mean(), rollup.stdDev(),
+                             timerConverter(rollup.name, (Timer) rollup.first), dimensions);
+            break;
+        }
+        for (ScopeRollup.Member member : rollup.topScopes()) {
+            currentPriority = priorityOf(member.name, member.metric);
+            member.metric.processWith(this, member.name, timestamp);
+        }
+    }
+
+    private void sendSlowestGauges(Date timestamp) {
+        for (GaugeEvaluator.Timing timing : gauges.slowest()) {
+            sendValue(timestamp, sanitizeName(timing.name) + ".evaluationTime", timing.nanos / 1E6, StandardUnit.Milliseconds, createDimensions(timing.name, timing.gauge));
+        }
+    }
+
+
+    private void sendVMMetrics(Date timestamp, List<Dimension> dimensions) {
+        if (vm == null && (sendJVMMemory || sendJVMThreads || sendJVMGC)) {
+            vm = VirtualMachineMetrics.getInstance();
         }
         if (sendJVMMemory) {
             sendValue(timestamp, "jvm.memory.heap_usage", vm.heapUsage(), StandardUnit.Percent, dimensions);
             sendValue(timestamp, "jvm.memory.non_heap_usage", vm.nonHeapUsage(), StandardUnit.Percent, dimensions);
         }
 
+        if (memoryDetail != null) {
+            for (JVMMemoryDetail.Reading reading : memoryDetail.read()) {
+                sendValue(timestamp, reading.name, reading.value, reading.unit, dimensions);
+            }
+        }
+
         if (sendJVMThreads) {
             sendValue(timestamp, "jvm.thread_count", vm.threadCount(), StandardUnit.Count, dimensions);
             sendValue(timestamp, "jvm.daemon_thread_count", vm.daemonThreadCount(), StandardUnit.Count, dimensions);
@@ -491,6 +1338,26 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
                 sendValue(timestamp, "jvm.gc." + entry.getKey() + ".runs", entry.getValue().getRuns(), StandardUnit.Count, dimensions);
             }
         }
+
+        if (gcTelemetry != null) {
+            GCTelemetry.Snapshot gc = gcTelemetry.snapshot();
+            // CloudWatch rejects statistic sets without samples, and there's no percentile of no pauses
+            if (gc.pauses > 0) {
+                sendStatistics(timestamp, "jvm.gc.pause", gc.pauses, gc.pauseSumMillis, gc.pauseMinMillis, gc.pauseMaxMillis, StandardUnit.Milliseconds, dimensions);
+                sendValue(timestamp, "jvm.gc.pause_percentile_0.99", gc.pause99Millis, StandardUnit.Milliseconds, dimensions);
+            }
+            sendValue(timestamp, "jvm.gc.allocation_rate", gc.allocatedBytesPerSecond, StandardUnit.BytesSecond, dimensions);
+            sendValue(timestamp, "jvm.gc.promotion_rate", gc.promotedBytesPerSecond, StandardUnit.BytesSecond, dimensions);
+        }
+    }
+
+    /** The dimensions of the JVM's and the reporter's own metrics, shared by all of them in a report. */
+    private List<Dimension> jvmDimensions() {
+        List<Dimension> dimensions = new ArrayList<Dimension>();
+        for (DimensionAdder adder : dimensionAdders) {
+            dimensions.addAll(adder.generateJVMDimensions());
+        }
+        return dimensions;
     }
 
     private List<Dimension> createDimensions(MetricName name, Metric metric) {
@@ -517,10 +1384,14 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
 
     @Override
     public void processGauge(MetricName name, Gauge<?> gauge, Date context) throws Exception {
-        if (gauge.value() instanceof Number) {
-            sendValue(context, sanitizeName(name), ((Number) gauge.value()).doubleValue(), StandardUnit.None, createDimensions(name, gauge));
+        Object value = gauges.value(name, gauge);
+        if (value == GaugeEvaluator.NO_VALUE) {
+            return;
+        }
+        if (value instanceof Number) {
+            sendValue(context, sanitizeName(name), ((Number) value).doubleValue(), StandardUnit.None, createDimensions(name, gauge));
         } else if (unsendable.add(name)) {
-            LOG.warn("The type of the value for {} is {}. It must be a subclass of Number to send to CloudWatch.", name, gauge.value().getClass());
+            LOG.warn("The type of the value for {} is {}. It must be a subclass of Number to send to CloudWatch.", name, value == null ? null : value.getClass());
         }
     }
 
@@ -532,114 +1403,85 @@ public class CloudWatchReporter extends AbstractPollingReporter implements Metri
 
     @Override
     public void processMeter(MetricName name, Metered meter, Date context) throws Exception {
-        List<Dimension> dimensions = createDimensions(name, meter);
-        String sanitizedName = sanitizeName(name);
-        String rateUnits = meter.rateUnit().name();
-        String rateUnit = rateUnits.substring(0, rateUnits.length() - 1).toLowerCase(Locale.US);
+        sendRates(context, sanitizeName(name), meter, meter.oneMinuteRate(), meter.fiveMinuteRate(),
+                  meter.fifteenMinuteRate(), meter.count(), meter.meanRate(), createDimensions(name, meter));
+    }
+
+    private void sendRates(Date context, String sanitizedName, Metered meter, double oneMinuteRate,
+                           double fiveMinuteRate, double fifteenMinuteRate, double count, double meanRate,
+                           List<Dimension> dimensions) {
+        dimensions = new ArrayList<Dimension>(dimensions);
         // CloudWatch only supports its standard units, so this rate won't line up. Instead send the unit as a dimension and call the unit None.
-        dimensions.add(new Dimension().withName("meterUnit").withValue(meter.eventType() + '/' + rateUnit));
+        dimensions.add(new Dimension().withName("meterUnit").withValue(meterUnit(meter)));
         if (sendOneMinute) {
-            sendValue(context, sanitizedName + ".1MinuteRate", meter.oneMinuteRate(), StandardUnit.None, dimensions);
+            sendValue(context, sanitizedName + ".1MinuteRate", oneMinuteRate, StandardUnit.None, dimensions);
         }
         if (sendFiveMinute) {
-            sendValue(context, sanitizedName + ".5MinuteRate", meter.fiveMinuteRate(), StandardUnit.None, dimensions);
+            sendValue(context, sanitizedName + ".5MinuteRate", fiveMinuteRate, StandardUnit.None, dimensions);
         }
         if (sendFifteenMinute) {
-            sendValue(context, sanitizedName + ".15MinuteRate", meter.fifteenMinuteRate(), StandardUnit.None, dimensions);
+            sendValue(context, sanitizedName + ".15MinuteRate", fifteenMinuteRate, StandardUnit.None, dimensions);
         }
         if (sendMeterSummary) {
-            sendValue(context, sanitizedName + ".count", meter.count(), StandardUnit.None, dimensions);
-            sendValue(context, sanitizedName + ".meanRate", meter.meanRate(), StandardUnit.None, dimensions);
+            sendValue(context, sanitizedName + ".count", count, StandardUnit.None, dimensions);
+            sendValue(context, sanitizedName + ".meanRate", meanRate, StandardUnit.None, dimensions);
         }
     }
 
+    private static String meterUnit(Metered meter) {
+        String rateUnits = meter.rateUnit().name();
+        return meter.eventType() + '/' + rateUnits.substring(0, rateUnits.length() - 1).toLowerCase(Locale.US);
+    }
+
     @Override
     public void processHistogram(MetricName name, Histogram histogram, Date context) throws Exception {
-        List<Dimension> dimensions = createDimensions(name, histogram);
-        String sanitizedName = sanitizeName(name);
-        Snapshot snapshot = histogram.getSnapshot();
-        for (double percentile : percentilesToSend) {
-            if (percentile == .5) {
-                sendValue(context, sanitizedName + ".median", snapshot.getMedian(), StandardUnit.None, dimensions);
-            } else {
-                sendValue(context, sanitizedName + "_percentile_" + percentile, snapshot.getValue(percentile), StandardUnit.None, dimensions);
-            }
-        }
-        if (sendHistoLifetime) {
-            sendValue(context, sanitizedName + ".min", histogram.min(), StandardUnit.None, dimensions);
-            sendValue(context, sanitizedName + ".max", histogram.max(), StandardUnit.None, dimensions);
-            sendValue(context, sanitizedName + ".mean", histogram.mean(), StandardUnit.None, dimensions);
-            sendValue(context, sanitizedName + ".stddev", histogram.stdDev(), StandardUnit.None, dimensions);
-        }
+        sendDistribution(context, sanitizeName(name), histogram.getSnapshot(), sendHistoLifetime, histogram.min(),
+                         histogram.max(), histogram.mean(), histogram.stdDev(), UnitConverter.NONE,
+                         createDimensions(name, histogram));
     }
 
     @Override
     public void processTimer(MetricName name, Timer timer, Date context) throws Exception {
-        // Convert the timer's duration unit to a unit cloud watch understands if possible
-        TimeUnit recordedUnit = timer.durationUnit();
-        StandardUnit cloudWatchUnit;
-        TimeUnit sendUnit;
-        switch(recordedUnit) {
-        case MILLISECONDS:
-            cloudWatchUnit = StandardUnit.Milliseconds;
-            sendUnit = TimeUnit.MILLISECONDS;
-            break;
-        case MICROSECONDS:
-            cloudWatchUnit = StandardUnit.Microseconds;
-            sendUnit = TimeUnit.MICROSECONDS;
-            break;
-        case SECONDS:
-            cloudWatchUnit = StandardUnit.Seconds;
-            sendUnit = TimeUnit.SECONDS;
-            break;
-        case NANOSECONDS:
-            if (nonCloudWatchUnit.add(name)) {
-                LOG.debug("Cloud Watch doesn't support nanosecond units; converting {} to microseconds.", name);
-            }
-            cloudWatchUnit = StandardUnit.Microseconds;
-            sendUnit = TimeUnit.MICROSECONDS;
-            break;
-        case DAYS:
-        case HOURS:
-        case MINUTES:
-            if (nonCloudWatchUnit.add(name)) {
-                LOG.debug("Cloud Watch doesn't support {} units; converting {} to seconds.", timer.durationUnit(), name);
-            }
-            cloudWatchUnit = StandardUnit.Seconds;
-            sendUnit = TimeUnit.SECONDS;
-            break;
-        default:
-            if (nonCloudWatchUnit.add(name)) {
-                LOG.warn("Unknown TimeUnit {}; not sending {}.", timer.durationUnit(), name);
-            }
-            return;
-        }
-
         processMeter(name, timer, context);
 
-        List<Dimension> dimensions = createDimensions(name, timer);
-        String sanitizedName = sanitizeName(name);
-        Snapshot snapshot = timer.getSnapshot();
+        sendDistribution(context, sanitizeName(name), timer.getSnapshot(), sendTimerLifetime, timer.min(),
+                         timer.max(), timer.mean(), timer.stdDev(), timerConverter(name, timer),
+                         createDimensions(name, timer));
+    }
+
+    /**
+     * Returns the converter to the unit CloudWatch is sent for the given timer, logging the first time values in the
+     * timer's unit have to be converted.
+     */
+    private UnitConverter timerConverter(MetricName name, Timer timer) {
+        UnitConverter converter = UnitConverter.forTimer(timer.durationUnit());
+        if (converter.firstConversion()) {
+            LOG.debug("Cloud Watch doesn't support {} units; converting {} and any other timers in them to {}.",
+                      new Object[] {converter.recorded, name, converter.unit});
+        }
+        return converter;
+    }
+
+    /**
+     * Sends the percentiles of the given snapshot, and the lifetime summary if enabled, converted to the unit sent to
+     * CloudWatch.
+     */
+    private void sendDistribution(Date context, String sanitizedName, Snapshot snapshot, boolean sendLifetime,
+                                  double min, double max, double mean, double stdDev, UnitConverter converter,
+                                  List<Dimension> dimensions) {
+        StandardUnit unit = converter.unit;
         for (double percentile : percentilesToSend) {
             if (percentile == .5) {
-                sendValue(context, sanitizedName + ".median", convertIfNecessary(snapshot.getMedian(), recordedUnit, sendUnit), cloudWatchUnit, dimensions);
+                sendValue(context, sanitizedName + ".median", converter.convert(snapshot.getMedian()), unit, dimensions);
             } else {
-                sendValue(context, sanitizedName + "_percentile_" + percentile, convertIfNecessary(snapshot.getValue(percentile), recordedUnit, sendUnit), cloudWatchUnit, dimensions);
+                sendValue(context, sanitizedName + "_percentile_" + percentile, converter.convert(snapshot.getValue(percentile)), unit, dimensions);
             }
         }
-        if (sendTimerLifetime) {
-            sendValue(context, sanitizedName + ".min", convertIfNecessary(timer.min(), recordedUnit, sendUnit), cloudWatchUnit, dimensions);
-            sendValue(context, sanitizedName + ".max", convertIfNecessary(timer.max(), recordedUnit, sendUnit), cloudWatchUnit, dimensions);
-            sendValue(context, sanitizedName + ".mean", convertIfNecessary(timer.mean(), recordedUnit, sendUnit), cloudWatchUnit, dimensions);
-            sendValue(context, sanitizedName + ".stddev", convertIfNecessary(timer.stdDev(), recordedUnit, sendUnit), cloudWatchUnit, dimensions);
-        }
-    }
-
-    /** If recordedUnit doesn't match sendUnit, converts recordedUnit into sendUnit. Otherwise, value is returned unchanged. */
-    private static double convertIfNecessary(double value, TimeUnit recordedUnit, TimeUnit sendUnit) {
-        if (recordedUnit == sendUnit) {
-            return value;
+        if (sendLifetime) {
+            sendValue(context, sanitizedName + ".min", converter.convert(min), unit, dimensions);
+            sendValue(context, sanitizedName + ".max", converter.convert(max), unit, dimensions);
+            sendValue(context, sanitizedName + ".mean", converter.convert(mean), unit, dimensions);
+            sendValue(context, sanitizedName + ".stddev", converter.convert(stdDev), unit, dimensions);
         }
-        return sendUnit.convert((long) value, recordedUnit);
     }
 }
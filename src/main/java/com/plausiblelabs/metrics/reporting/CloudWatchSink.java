@@ -0,0 +1,145 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.auth.AWSCredentials;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.PutMetricDataRequest;
+
+/**
+ * A {@link MetricSink} that sends metrics to CloudWatch with <code>PutMetricData</code> requests.
+ */
+public class CloudWatchSink implements MetricSink {
+    private static final Logger LOG = LoggerFactory.getLogger(CloudWatchSink.class);
+
+    /** CloudWatch only accepts 20 data per request. */
+    static final int MAX_DATA_PER_REQUEST = 20;
+
+    /** The most requests sent at once when sending in parallel. */
+    private static final int MAX_PARALLEL_REQUESTS = 8;
+
+    private final AWSCredentials creds;
+    private final boolean parallel;
+    private AmazonCloudWatchClient client;
+
+    public CloudWatchSink(AmazonCloudWatchClient client) {
+        this.client = client;
+        this.creds = null;
+        this.parallel = false;
+    }
+
+    /**
+     * Creates a sink that builds its client with the given credentials when it's first used, so creating the sink
+     * doesn't pay for setting up the client.
+     */
+    public CloudWatchSink(AWSCredentials creds) {
+        this(creds, false);
+    }
+
+    /**
+     * @param parallel if a report's requests should be sent at the same time rather than one after another
+     */
+    CloudWatchSink(AWSCredentials creds, boolean parallel) {
+        this.creds = creds;
+        this.parallel = parallel;
+    }
+
+    /**
+     * @param parallel if a report's requests should be sent at the same time rather than one after another
+     */
+    CloudWatchSink(AmazonCloudWatchClient client, boolean parallel) {
+        this.client = client;
+        this.creds = null;
+        this.parallel = parallel;
+    }
+
+    /** Returns the client, creating it if it hasn't been yet. */
+    synchronized AmazonCloudWatchClient client() {
+        if (client == null) {
+            client = new AmazonCloudWatchClient(creds);
+        }
+        return client;
+    }
+
+    /**
+     * Sends the data in requests of up to 20. A failed request indicates bad data, so it isn't retried; the remaining
+     * requests are still sent and the first failure is thrown once they're done.
+     */
+    @Override
+    public void send(String namespace, List<MetricDatum> data) throws InterruptedException {
+        final List<PutMetricDataRequest> requests = new ArrayList<PutMetricDataRequest>();
+        for (int start = 0; start < data.size(); start += MAX_DATA_PER_REQUEST) {
+            requests.add(new PutMetricDataRequest()
+                .withNamespace(namespace)
+                .withMetricData(data.subList(start, Math.min(data.size(), start + MAX_DATA_PER_REQUEST))));
+        }
+        final AmazonCloudWatchClient client = client();
+        if (!parallel || requests.size() == 1) {
+            RuntimeException failure = send(client, requests, 0, 1);
+            if (failure != null) {
+                throw failure;
+            }
+            return;
+        }
+
+        // Each thread takes every nth request, so at most MAX_PARALLEL_REQUESTS are in flight
+        final int threads = Math.min(requests.size(), MAX_PARALLEL_REQUESTS);
+        final RuntimeException[] failures = new RuntimeException[threads];
+        List<Thread> senders = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final int first = i;
+            Thread sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    failures[first] = send(client, requests, first, threads);
+                }
+            }, "cloudwatch-reporter-send-" + i);
+            sender.setDaemon(true);
+            sender.start();
+            senders.add(sender);
+        }
+        for (Thread sender : senders) {
+            sender.join();
+        }
+        for (RuntimeException failure : failures) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /** Sends every stepth request from first, returning the first failure. */
+    private static RuntimeException send(AmazonCloudWatchClient client, List<PutMetricDataRequest> requests, int first,
+                                         int step) {
+        RuntimeException failure = null;
+        for (int i = first; i < requests.size(); i += step) {
+            try {
+                client.putMetricData(requests.get(i));
+            } catch (RuntimeException re) {
+                LOG.warn("Failed writing to CloudWatch: {}", requests.get(i));
+                if (failure == null) {
+                    failure = re;
+                }
+            }
+        }
+        return failure;
+    }
+
+    /** Leaves the client open, as it may have been created outside the sink. */
+    @Override
+    public void close() {}
+
+    @Override
+    public String toString() {
+        return "CloudWatch";
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+
+/**
+ * <p>Limits each report to a fixed number of data, picking the series to send by priority. A series' priority goes up
+ * by one for every report it's deferred in a row, so a series crowded out by higher priority ones still gets sent now
+ * and then. Among series of the same priority, those whose value changed the most since they were last sent win.</p>
+ *
+ * <p>Not thread safe; only used from the reporting thread.</p>
+ */
+class DatumBudget {
+    private static class SeriesKey {
+        final String name;
+        final String unit;
+        final List<Dimension> dimensions;
+        final int hash;
+
+        SeriesKey(String name, String unit, List<Dimension> dimensions) {
+            this.name = name;
+            this.unit = unit;
+            this.dimensions = dimensions;
+            this.hash = (name.hashCode() * 31 + (unit == null ? 0 : unit.hashCode())) * 31 + dimensions.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) o;
+            return name.equals(other.name) && (unit == null ? other.unit == null : unit.equals(other.unit))
+                && dimensions.equals(other.dimensions);
+        }
+    }
+
+    private static class Series {
+        int priority;
+        /** The consecutive reports this series was deferred in. */
+        int deferred;
+        double lastSent = Double.NaN;
+        long lastSeen;
+
+        // Set for the report being selected
+        MetricDatum datum;
+        double value;
+        double change;
+        boolean chosen;
+
+        long rank() {
+            return (long) priority + deferred;
+        }
+    }
+
+    /** Orders the series least deserving of a place first. */
+    private static final Comparator<Series> WORST_FIRST = new Comparator<Series>() {
+        @Override
+        public int compare(Series a, Series b) {
+            long rankA = a.rank(), rankB = b.rank();
+            if (rankA != rankB) {
+                return rankA < rankB ? -1 : 1;
+            }
+            return Double.compare(a.change, b.change);
+        }
+    };
+
+    private final int maxData;
+    private final Map<SeriesKey, Series> series = new HashMap<SeriesKey, Series>();
+    private final TopN<Series> selected;
+    private long report;
+    private int deferred;
+
+    DatumBudget(int maxData) {
+        this.maxData = maxData;
+        this.selected = new TopN<Series>(maxData, WORST_FIRST);
+    }
+
+    /**
+     * Sets the priority of the given series for the report being collected. If a series is given several priorities
+     * in a report, as when colliding series are coalesced, the highest is used.
+     */
+    void prioritize(String name, String unit, List<Dimension> dimensions, int priority) {
+        Series current = lookup(new SeriesKey(name, unit, dimensions));
+        if (current.lastSeen != report) {
+            current.lastSeen = report;
+            current.priority = priority;
+        } else {
+            current.priority = Math.max(current.priority, priority);
+        }
+    }
+
+    /**
+     * Returns the data to send from the given report, in their original order, and starts collecting the next report.
+     */
+    List<MetricDatum> select(List<MetricDatum> data) {
+        deferred = 0;
+        List<Series> candidates = new ArrayList<Series>(data.size());
+        for (MetricDatum datum : data) {
+            Series current = lookup(new SeriesKey(datum.getMetricName(), datum.getUnit(), datum.getDimensions()));
+            if (current.lastSeen != report) {
+                // Not prioritized this report, so it gets the default priority
+                current.lastSeen = report;
+                current.priority = 0;
+            } else if (current.datum != null) {
+                // Sent more than once without coalescing; the repeat competes on its own
+                Series repeat = new Series();
+                repeat.priority = current.priority;
+                repeat.deferred = current.deferred;
+                repeat.lastSent = current.lastSent;
+                current = repeat;
+            }
+            current.datum = datum;
+            current.value = valueOf(datum);
+            current.change = change(current.lastSent, current.value);
+            candidates.add(current);
+        }
+
+        List<MetricDatum> result;
+        if (candidates.size() <= maxData) {
+            for (Series current : candidates) {
+                sent(current);
+            }
+            result = data;
+        } else {
+            for (Series current : candidates) {
+                selected.offer(current);
+            }
+            for (Series current : selected.items()) {
+                current.chosen = true;
+            }
+            selected.clear();
+            result = new ArrayList<MetricDatum>(maxData);
+            for (Series current : candidates) {
+                if (current.chosen) {
+                    result.add(current.datum);
+                    sent(current);
+                    current.chosen = false;
+                } else {
+                    current.deferred++;
+                    deferred++;
+                }
+            }
+        }
+
+        for (Series current : candidates) {
+            current.datum = null;
+        }
+        // Forget series that have stopped reporting
+        for (Iterator<Series> it = series.values().iterator(); it.hasNext();) {
+            Series current = it.next();
+            if (current.lastSeen != report) {
+                it.remove();
+            }
+        }
+        report++;
+        return result;
+    }
+
+    /** The number of series deferred in the latest report. */
+    int deferred() {
+        return deferred;
+    }
+
+    private Series lookup(SeriesKey key) {
+        Series current = series.get(key);
+        if (current == null) {
+            current = new Series();
+            current.lastSeen = -1;
+            series.put(key, current);
+        }
+        return current;
+    }
+
+    private void sent(Series current) {
+        current.deferred = 0;
+        current.lastSent = current.value;
+    }
+
+    private static double valueOf(MetricDatum datum) {
+        StatisticSet statistics = datum.getStatisticValues();
+        if (statistics != null) {
+            return statistics.getSampleCount() == 0 ? 0 : statistics.getSum() / statistics.getSampleCount();
+        }
+        return datum.getValue() == null ? 0 : datum.getValue();
+    }
+
+    /** The change relative to the previous value; series that have never been sent change the most. */
+    private static double change(double previous, double value) {
+        if (Double.isNaN(previous)) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double magnitude = Math.max(Math.abs(previous), Math.abs(value));
+        return magnitude == 0 ? 0 : Math.abs(value - previous) / magnitude;
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+
+/**
+ * <p>A {@link MetricSink} that appends metrics to a file in CloudWatch's
+ * <a href="https://docs.aws.amazon.com/AmazonCloudWatch/latest/monitoring/CloudWatch_Embedded_Metric_Format_Specification.html">Embedded
+ * Metric Format</a>, for an agent to ship to CloudWatch Logs where the metrics are extracted. Each line is a JSON
+ * document holding every metric in a report that shares the same dimensions, up to the format's limit of 100
+ * metrics per document.</p>
+ *
+ * <p>Documents are encoded into a reused direct buffer and appended to the file in a single write per report unless
+ * they overflow the buffer. Once the file reaches its maximum size it's renamed with a <code>.1</code> suffix,
+ * shifting older files up to the given number of backups, and a new file is started.</p>
+ *
+ * <p>The format only takes numbers or arrays of numbers as values, so a <code>StatisticSet</code> is written as an
+ * array with the same sample count, sum, minimum and maximum: the minimum, the maximum, and the rest of the sum spread
+ * evenly over the remaining samples. Sets with more samples than an array may hold are written as separate
+ * <code>.count</code>, <code>.sum</code>, <code>.min</code> and <code>.max</code> metrics instead.</p>
+ */
+public class EMFLogSink implements MetricSink {
+    private static final Logger LOG = LoggerFactory.getLogger(EMFLogSink.class);
+
+    private static final int MAX_METRICS_PER_DOCUMENT = 100;
+    private static final int MAX_VALUES_PER_METRIC = 100;
+    private static final String[] STATISTIC_SUFFIXES = {".count", ".sum", ".min", ".max"};
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File file;
+    private final long maxFileBytes;
+    private final int backups;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharsetEncoder encoder = Charset.forName("UTF-8").newEncoder();
+    private final StringBuilder document = new StringBuilder(4096);
+    private final StringBuilder values = new StringBuilder(4096);
+    private final Set<String> namesInDocument = new HashSet<String>();
+    private boolean loggedSplitStatistics;
+
+    private FileChannel channel;
+
+    /**
+     * @param file the file to append to
+     * @param maxFileBytes the size at which the file is rotated
+     * @param backups the number of rotated files to keep
+     */
+    public EMFLogSink(File file, long maxFileBytes, int backups) {
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.backups = backups;
+    }
+
+    /** Appends the given data to the file, grouping data with the same dimensions into documents. */
+    @Override
+    public synchronized void send(String namespace, List<MetricDatum> data) throws IOException {
+        if (data.isEmpty()) {
+            return;
+        }
+        if (channel == null) {
+            channel = new FileOutputStream(file, true).getChannel();
+        }
+        Map<List<Dimension>, List<MetricDatum>> byDimensions = new LinkedHashMap<List<Dimension>, List<MetricDatum>>();
+        for (MetricDatum datum : data) {
+            List<MetricDatum> group = byDimensions.get(datum.getDimensions());
+            if (group == null) {
+                group = new ArrayList<MetricDatum>();
+                byDimensions.put(datum.getDimensions(), group);
+            }
+            group.add(datum);
+        }
+        buffer.clear();
+        for (Map.Entry<List<Dimension>, List<MetricDatum>> entry : byDimensions.entrySet()) {
+            writeDocuments(namespace, entry.getKey(), entry.getValue());
+        }
+        flush();
+        if (channel.size() >= maxFileBytes) {
+            rotate();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EMF log " + file;
+    }
+
+    private void writeDocuments(String namespace, List<Dimension> dimensions, List<MetricDatum> data)
+        throws IOException {
+        int start = 0;
+        while (start < data.size()) {
+            startDocument(namespace, dimensions, data.get(start).getTimestamp().getTime());
+            int written = 0;
+            int i = start;
+            for (; i < data.size(); i++) {
+                MetricDatum datum = data.get(i);
+                String[] names = metricNames(datum);
+                // A name can only appear once in a document; that only happens if series coalescing is disabled
+                if (written + names.length > MAX_METRICS_PER_DOCUMENT || !addNames(names)) {
+                    break;
+                }
+                written += appendMetric(datum, names, written == 0);
+            }
+            endDocument(dimensions);
+            if (written > 0) {
+                encode(document);
+            }
+            start = i;
+        }
+    }
+
+    private void startDocument(String namespace, List<Dimension> dimensions, long timestamp) {
+        document.setLength(0);
+        values.setLength(0);
+        namesInDocument.clear();
+        document.append("{\"_aws\":{\"Timestamp\":").append(timestamp)
+            .append(",\"CloudWatchMetrics\":[{\"Namespace\":");
+        appendString(document, namespace);
+        document.append(",\"Dimensions\":[[");
+        for (int i = 0; i < dimensions.size(); i++) {
+            if (i > 0) {
+                document.append(',');
+            }
+            appendString(document, dimensions.get(i).getName());
+        }
+        document.append("]],\"Metrics\":[");
+    }
+
+    /** The names the datum is written under: its own, or one per statistic if its set can't be an array. */
+    private String[] metricNames(MetricDatum datum) {
+        StatisticSet stats = datum.getStatisticValues();
+        if (stats == null || fitsInArray(stats)) {
+            return new String[] {datum.getMetricName()};
+        }
+        String[] names = new String[STATISTIC_SUFFIXES.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = datum.getMetricName() + STATISTIC_SUFFIXES[i];
+        }
+        return names;
+    }
+
+    /** Returns false without adding any if one of the names is already in the document. */
+    private boolean addNames(String[] names) {
+        for (String name : names) {
+            if (namesInDocument.contains(name)) {
+                return false;
+            }
+        }
+        for (String name : names) {
+            namesInDocument.add(name);
+        }
+        return true;
+    }
+
+    private static boolean fitsInArray(StatisticSet stats) {
+        double count = stats.getSampleCount();
+        return count >= 1 && count <= MAX_VALUES_PER_METRIC && count == Math.rint(count);
+    }
+
+    /**
+     * Returns the number of metrics written for the datum under the given names, or 0 if its value can't be
+     * represented in JSON and was skipped.
+     */
+    private int appendMetric(MetricDatum datum, String[] names, boolean first) {
+        StatisticSet stats = datum.getStatisticValues();
+        if (stats == null) {
+            if (datum.getValue().isNaN() || datum.getValue().isInfinite()) {
+                return 0;
+            }
+            appendDirective(names[0], datum.getUnit(), first);
+            appendValueName(names[0]);
+            values.append(datum.getValue().doubleValue());
+            return 1;
+        }
+        double count = stats.getSampleCount(), sum = stats.getSum();
+        double min = stats.getMinimum(), max = stats.getMaximum();
+        if (names.length == 1) {
+            appendDirective(names[0], datum.getUnit(), first);
+            appendValueName(names[0]);
+            if (count == 1) {
+                values.append(sum);
+                return 1;
+            }
+            values.append('[').append(min).append(',').append(max);
+            double rest = (sum - min - max) / (count - 2);
+            for (int i = 2; i < count; i++) {
+                values.append(',').append(rest);
+            }
+            values.append(']');
+            return 1;
+        }
+        if (!loggedSplitStatistics) {
+            LOG.warn("{} has more samples than an Embedded Metric Format array holds; writing its statistics as separate metrics. Further splits won't be logged.", datum.getMetricName());
+            loggedSplitStatistics = true;
+        }
+        double[] statistics = {count, sum, min, max};
+        for (int i = 0; i < names.length; i++) {
+            appendDirective(names[i], i == 0 ? "Count" : datum.getUnit(), first && i == 0);
+            appendValueName(names[i]);
+            values.append(statistics[i]);
+        }
+        return names.length;
+    }
+
+    private void appendDirective(String name, String unit, boolean first) {
+        if (!first) {
+            document.append(',');
+        }
+        document.append("{\"Name\":");
+        appendString(document, name);
+        document.append(",\"Unit\":");
+        appendString(document, unit);
+        document.append('}');
+    }
+
+    private void appendValueName(String name) {
+        values.append(',');
+        appendString(values, name);
+        values.append(':');
+    }
+
+    private void endDocument(List<Dimension> dimensions) {
+        document.append("]}]}");
+        for (Dimension dimension : dimensions) {
+            document.append(',');
+            appendString(document, dimension.getName());
+            document.append(':');
+            appendString(document, dimension.getValue());
+        }
+        document.append(values).append("}\n");
+    }
+
+    private void encode(CharSequence chars) throws IOException {
+        CharBuffer in = CharBuffer.wrap(chars);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(in, buffer, true);
+            if (result.isOverflow()) {
+                flush();
+            } else if (result.isUnderflow()) {
+                break;
+            } else {
+                result.throwException();
+            }
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void rotate() throws IOException {
+        close();
+        if (backups <= 0) {
+            if (!file.delete()) {
+                throw new IOException("Unable to delete " + file + " to rotate it");
+            }
+            return;
+        }
+        File oldest = backup(backups);
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("Unable to delete " + oldest + " to rotate it");
+        }
+        for (int i = backups - 1; i >= 1; i--) {
+            File from = backup(i);
+            if (from.exists() && !from.renameTo(backup(i + 1))) {
+                throw new IOException("Unable to rename " + from + " to rotate it");
+            }
+        }
+        if (!file.renameTo(backup(1))) {
+            throw new IOException("Unable to rename " + file + " to rotate it");
+        }
+    }
+
+    private File backup(int index) {
+        return new File(file.getPath() + "." + index);
+    }
+
+    private static void appendString(StringBuilder sb, String value) {
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            case '\t':
+                sb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        sb.append('"');
+    }
+}
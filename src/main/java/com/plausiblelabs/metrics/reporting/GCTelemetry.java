@@ -0,0 +1,155 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.management.GcInfo;
+
+/**
+ * <p>Records every garbage collection pause through the GarbageCollector MXBean notifications, along with the bytes
+ * allocated and promoted into the old generation. {@link #snapshot} returns and resets the values gathered since the
+ * last snapshot.</p>
+ *
+ * <p>Allocation is measured as heap growth between collections plus heap growth since the last collection at snapshot
+ * time. Promotion is the growth of the old generation pools during collections.</p>
+ */
+class GCTelemetry implements NotificationListener {
+    private static final Logger LOG = LoggerFactory.getLogger(GCTelemetry.class);
+
+    /** A summary of the collections since the previous snapshot. */
+    static class Snapshot {
+        final long pauses, pauseSumMillis, pauseMinMillis, pauseMaxMillis, pause99Millis;
+        final double allocatedBytesPerSecond, promotedBytesPerSecond;
+
+        Snapshot(long pauses, long pauseSumMillis, long pauseMinMillis, long pauseMaxMillis, long pause99Millis,
+                 double allocatedBytesPerSecond, double promotedBytesPerSecond) {
+            this.pauses = pauses;
+            this.pauseSumMillis = pauseSumMillis;
+            this.pauseMinMillis = pauseMinMillis;
+            this.pauseMaxMillis = pauseMaxMillis;
+            this.pause99Millis = pause99Millis;
+            this.allocatedBytesPerSecond = allocatedBytesPerSecond;
+            this.promotedBytesPerSecond = promotedBytesPerSecond;
+        }
+    }
+
+    private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private final List<NotificationEmitter> emitters = new ArrayList<NotificationEmitter>();
+    private final Set<String> heapPools = new HashSet<String>();
+    private final Set<String> oldPools = new HashSet<String>();
+    private final LogHistogram pauses = new LogHistogram();
+
+    /** Bytes allocated between collections since the last snapshot. */
+    private long allocatedBetweenCollections;
+    private long promoted;
+    /** Heap used after the most recent collection, or at the last snapshot if there's been no collection since. */
+    private long heapUsedBaseline;
+    private long lastSnapshotNanos;
+
+    void start() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                heapPools.add(pool.getName());
+                if (pool.getName().contains("Old") || pool.getName().contains("Tenured")) {
+                    oldPools.add(pool.getName());
+                }
+            }
+        }
+        synchronized (this) {
+            heapUsedBaseline = memory.getHeapMemoryUsage().getUsed();
+            lastSnapshotNanos = System.nanoTime();
+        }
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            // Concurrent cycles run alongside the application, so their durations aren't pauses
+            if (gc.getName().contains("Concurrent") || gc.getName().contains("Cycles")) {
+                continue;
+            }
+            if (gc instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) gc;
+                emitter.addNotificationListener(this, null, null);
+                emitters.add(emitter);
+            }
+        }
+        if (emitters.isEmpty()) {
+            LOG.warn("No garbage collectors emit notifications in this JVM; GC pauses won't be reported.");
+        }
+    }
+
+    void stop() {
+        for (NotificationEmitter emitter : emitters) {
+            try {
+                emitter.removeNotificationListener(this);
+            } catch (ListenerNotFoundException ignored) {
+                // Already gone
+            }
+        }
+        emitters.clear();
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+            return;
+        }
+        GcInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData()).getGcInfo();
+        long heapBefore = 0, heapAfter = 0, oldBefore = 0, oldAfter = 0;
+        Map<String, MemoryUsage> after = info.getMemoryUsageAfterGc();
+        for (Map.Entry<String, MemoryUsage> entry : info.getMemoryUsageBeforeGc().entrySet()) {
+            MemoryUsage poolAfter = after.get(entry.getKey());
+            if (poolAfter == null || !heapPools.contains(entry.getKey())) {
+                continue;
+            }
+            heapBefore += entry.getValue().getUsed();
+            heapAfter += poolAfter.getUsed();
+            if (oldPools.contains(entry.getKey())) {
+                oldBefore += entry.getValue().getUsed();
+                oldAfter += poolAfter.getUsed();
+            }
+        }
+        synchronized (this) {
+            pauses.record(info.getDuration());
+            allocatedBetweenCollections += Math.max(0, heapBefore - heapUsedBaseline);
+            promoted += Math.max(0, oldAfter - oldBefore);
+            heapUsedBaseline = heapAfter;
+        }
+    }
+
+    /** Returns the collections since the previous snapshot and starts a new interval. */
+    synchronized Snapshot snapshot() {
+        long now = System.nanoTime();
+        long heapUsed = memory.getHeapMemoryUsage().getUsed();
+        long allocated = allocatedBetweenCollections + Math.max(0, heapUsed - heapUsedBaseline);
+        double seconds = Math.max(1, now - lastSnapshotNanos) / 1E9;
+        Snapshot snapshot = new Snapshot(pauses.count(), pauses.sum(), pauses.min(), pauses.max(),
+                                         pauses.percentile(.99), allocated / seconds, promoted / seconds);
+        pauses.reset();
+        allocatedBetweenCollections = 0;
+        promoted = 0;
+        heapUsedBaseline = heapUsed;
+        lastSnapshotNanos = now;
+        return snapshot;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+
+/**
+ * <p>Caches gauge values for a time-to-live chosen by the first matching predicate. Gauges that match no predicate
+ * are evaluated every time. Share a single cache between the Enablers of every reporter reading a registry, via
+ * {@link CloudWatchReporter.Enabler#withGaugeCache}, to have them share gauge evaluations as well.</p>
+ *
+ * <p>Only one thread evaluates an expired gauge at a time; others asking for its value while it's being evaluated
+ * wait for that evaluation rather than starting their own. If the evaluation throws, the exception is thrown to every
+ * waiting thread and nothing is cached.</p>
+ */
+public class GaugeCache {
+    private static class Rule {
+        final MetricPredicate predicate;
+        final long ttlNanos;
+
+        Rule(MetricPredicate predicate, long ttlNanos) {
+            this.predicate = predicate;
+            this.ttlNanos = ttlNanos;
+        }
+    }
+
+    private static class Entry {
+        final long ttlNanos;
+
+        private boolean cached;
+        private Object value;
+        private long computedNanos;
+        private FutureTask<Object> inFlight;
+
+        Entry(long ttlNanos) {
+            this.ttlNanos = ttlNanos;
+        }
+
+        Object get(final Gauge<?> gauge) {
+            FutureTask<Object> task;
+            boolean evaluateHere = false;
+            synchronized (this) {
+                if (cached && System.nanoTime() - computedNanos < ttlNanos) {
+                    return value;
+                }
+                if (inFlight == null) {
+                    inFlight = new FutureTask<Object>(new Callable<Object>() {
+                        @Override
+                        public Object call() throws Exception {
+                            return gauge.value();
+                        }
+                    });
+                    evaluateHere = true;
+                }
+                task = inFlight;
+            }
+            if (evaluateHere) {
+                task.run();
+                synchronized (this) {
+                    inFlight = null;
+                    try {
+                        value = task.get();
+                        cached = true;
+                        computedNanos = System.nanoTime();
+                    } catch (Exception e) {
+                        // The failure is thrown to callers below; don't cache it
+                        cached = false;
+                    }
+                }
+            }
+            try {
+                return task.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                } else if (e.getCause() instanceof Error) {
+                    throw (Error) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted waiting for another thread to evaluate a gauge", e);
+            }
+        }
+    }
+
+    /** Marks gauges that matched no rule, so the rules aren't checked again on every evaluation. */
+    private static final Entry UNCACHED = new Entry(0);
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+
+    /** Weakly keyed so gauges removed from their registry don't stay in the cache. */
+    private final Map<Gauge<?>, Entry> entries = Collections.synchronizedMap(new WeakHashMap<Gauge<?>, Entry>());
+
+    /**
+     * Caches the values of gauges matching the given predicate for the given time. Predicates are checked in the order
+     * they're added, and the first match is used. Only affects gauges evaluated for the first time after it's added.
+     * @param predicate the gauges to cache
+     * @param ttl how long to keep a gauge's value
+     * @param unit the unit of the ttl
+     * @return this GaugeCache.
+     */
+    public GaugeCache withTTL(MetricPredicate predicate, long ttl, TimeUnit unit) {
+        synchronized (rules) {
+            rules.add(new Rule(predicate, unit.toNanos(ttl)));
+        }
+        return this;
+    }
+
+    /**
+     * Returns the cached value of the given gauge if it's within its time-to-live, or evaluates it if not.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T value(MetricName name, Gauge<T> gauge) {
+        Entry entry = entries.get(gauge);
+        if (entry == null) {
+            long ttlNanos = ttlNanos(name, gauge);
+            synchronized (entries) {
+                entry = entries.get(gauge);
+                if (entry == null) {
+                    entry = ttlNanos > 0 ? new Entry(ttlNanos) : UNCACHED;
+                    entries.put(gauge, entry);
+                }
+            }
+        }
+        if (entry == UNCACHED) {
+            return gauge.value();
+        }
+        return (T) entry.get(gauge);
+    }
+
+    private long ttlNanos(MetricName name, Gauge<?> gauge) {
+        synchronized (rules) {
+            for (Rule rule : rules) {
+                if (rule.predicate.matches(name, gauge)) {
+                    return rule.ttlNanos;
+                }
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * <p>Evaluates each gauge at most once per report, and keeps the slowest gauges of the latest report.</p>
+ *
+ * <p>Without an executor, gauges are evaluated on the reporting thread as they're processed. With one, every gauge is
+ * submitted to it at the start of the report. A gauge that doesn't produce a value within the timeout of starting is
+ * skipped for that report. Gauges still waiting for a thread once the pool could have run them all within the timeout
+ * are skipped as well, so a pool full of stuck gauges can't hold up the report. A gauge that timed out isn't
+ * resubmitted until its previous evaluation finishes.</p>
+ */
+class GaugeEvaluator {
+    private static final Logger LOG = LoggerFactory.getLogger(GaugeEvaluator.class);
+
+    /** Returned by {@link #value} for gauges that timed out or failed. */
+    static final Object NO_VALUE = new Object();
+
+    /** How long a gauge took to evaluate in the latest report. */
+    static class Timing {
+        final MetricName name;
+        final Gauge<?> gauge;
+        final long nanos;
+
+        Timing(MetricName name, Gauge<?> gauge, long nanos) {
+            this.name = name;
+            this.gauge = gauge;
+            this.nanos = nanos;
+        }
+    }
+
+    private static final Comparator<Timing> FASTEST_FIRST = new Comparator<Timing>() {
+        @Override
+        public int compare(Timing a, Timing b) {
+            return a.nanos < b.nanos ? -1 : (a.nanos == b.nanos ? 0 : 1);
+        }
+    };
+
+    private class GaugeTask implements Callable<Object> {
+        private final MetricName name;
+        private final Gauge<?> gauge;
+        private volatile long startNanos, endNanos;
+
+        GaugeTask(MetricName name, Gauge<?> gauge) {
+            this.name = name;
+            this.gauge = gauge;
+        }
+
+        /** If the gauge started but hasn't finished; a cancelled future is done even while its gauge keeps going. */
+        boolean running() {
+            return startNanos != 0 && endNanos == 0;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            startNanos = System.nanoTime();
+            try {
+                return evaluate(name, gauge);
+            } finally {
+                endNanos = System.nanoTime();
+            }
+        }
+    }
+
+    private final ExecutorService executor;
+    private final int threads;
+    private final long timeoutNanos;
+    private final int slowestToTrack;
+    private final GaugeCache cache;
+
+    private final TopN<Timing> slowest;
+    private final Map<MetricName, GaugeTask> stillRunning = new HashMap<MetricName, GaugeTask>();
+    private Map<MetricName, Object> prefetched;
+
+    /**
+     * @param executor runs the gauges, or null to evaluate them on the reporting thread. Owned by this evaluator.
+     * @param threads the number of threads in executor
+     * @param timeout how long a gauge may run on the executor before it's skipped
+     * @param slowestToTrack how many of the slowest gauges to keep
+     * @param cache caches gauge values, or null to evaluate every gauge on every report
+     */
+    GaugeEvaluator(ExecutorService executor, int threads, long timeout, TimeUnit unit, int slowestToTrack,
+                   GaugeCache cache) {
+        this.executor = executor;
+        this.threads = threads;
+        this.timeoutNanos = unit.toNanos(timeout);
+        this.slowestToTrack = slowestToTrack;
+        this.cache = cache;
+        this.slowest = new TopN<Timing>(slowestToTrack, FASTEST_FIRST);
+    }
+
+    /** Starts a report over the given metrics, evaluating their gauges up front if there's an executor. */
+    void start(SortedMap<String, SortedMap<MetricName, Metric>> grouped) {
+        slowest.clear();
+        if (executor == null) {
+            return;
+        }
+        Map<MetricName, GaugeTask> tasks = new HashMap<MetricName, GaugeTask>();
+        Map<MetricName, Future<Object>> futures = new HashMap<MetricName, Future<Object>>();
+        for (SortedMap<MetricName, Metric> group : grouped.values()) {
+            for (Map.Entry<MetricName, Metric> entry : group.entrySet()) {
+                if (!(entry.getValue() instanceof Gauge)) {
+                    continue;
+                }
+                GaugeTask previous = stillRunning.get(entry.getKey());
+                if (previous != null) {
+                    if (previous.running()) {
+                        LOG.warn("Gauge {} is still running from a previous report; skipping it.", entry.getKey());
+                        continue;
+                    }
+                    stillRunning.remove(entry.getKey());
+                }
+                GaugeTask task = new GaugeTask(entry.getKey(), (Gauge<?>) entry.getValue());
+                tasks.put(entry.getKey(), task);
+                futures.put(entry.getKey(), executor.submit(task));
+            }
+        }
+
+        prefetched = new HashMap<MetricName, Object>();
+        long submitted = System.nanoTime();
+        long rounds = (futures.size() + threads - 1) / Math.max(1, threads);
+        long reportDeadline = submitted + Math.max(1, rounds) * timeoutNanos;
+        for (Map.Entry<MetricName, Future<Object>> entry : futures.entrySet()) {
+            GaugeTask task = tasks.get(entry.getKey());
+            prefetched.put(entry.getKey(), await(entry.getKey(), task, entry.getValue(), reportDeadline));
+        }
+    }
+
+    private Object await(MetricName name, GaugeTask task, Future<Object> future, long reportDeadline) {
+        while (true) {
+            long now = System.nanoTime();
+            long started = task.startNanos;
+            long deadline = started == 0 ? Math.min(reportDeadline, now + timeoutNanos) : started + timeoutNanos;
+            try {
+                Object value = future.get(Math.max(0, deadline - now), TimeUnit.NANOSECONDS);
+                record(name, task.gauge, task.endNanos - task.startNanos);
+                return value;
+            } catch (TimeoutException e) {
+                now = System.nanoTime();
+                started = task.startNanos;
+                if (started == 0 ? now - reportDeadline >= 0 : now - started >= timeoutNanos) {
+                    LOG.warn("Gauge {} didn't produce a value within {}ms; skipping it.", name,
+                             TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+                    if (started != 0) {
+                        record(name, task.gauge, now - started);
+                    }
+                    future.cancel(true);
+                    stillRunning.put(name, task);
+                    return NO_VALUE;
+                }
+                // Not started yet or its time isn't up; keep waiting
+            } catch (ExecutionException e) {
+                LOG.error("Error evaluating gauge " + name + ":", e.getCause());
+                return NO_VALUE;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.cancel(true);
+                return NO_VALUE;
+            }
+        }
+    }
+
+    /** Returns the value of the given gauge for this report, or {@link #NO_VALUE} if it couldn't be evaluated. */
+    Object value(MetricName name, Gauge<?> gauge) {
+        if (prefetched != null) {
+            Object value = prefetched.get(name);
+            return value == null && !prefetched.containsKey(name) ? NO_VALUE : value;
+        }
+        long start = System.nanoTime();
+        try {
+            return evaluate(name, gauge);
+        } finally {
+            record(name, gauge, System.nanoTime() - start);
+        }
+    }
+
+    /** Ends the current report, dropping any values evaluated for it. */
+    void finish() {
+        prefetched = null;
+        for (Iterator<GaugeTask> it = stillRunning.values().iterator(); it.hasNext();) {
+            if (!it.next().running()) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Stops the executor, interrupting any gauges still running on it. */
+    void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /** The slowest gauges of the latest report, slowest first. */
+    List<Timing> slowest() {
+        return slowest.sorted();
+    }
+
+    private Object evaluate(MetricName name, Gauge<?> gauge) {
+        return cache == null ? gauge.value() : cache.value(name, gauge);
+    }
+
+    private void record(MetricName name, Gauge<?> gauge, long nanos) {
+        if (slowestToTrack > 0) {
+            slowest.offer(new Timing(name, gauge, nanos));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+
+/**
+ * A {@link MetricSink} that keeps every datum it's sent in memory. Useful for checking what a reporter sends without
+ * calling CloudWatch.
+ */
+public class InMemorySink implements MetricSink {
+    private final List<MetricDatum> data = new ArrayList<MetricDatum>();
+
+    @Override
+    public synchronized void send(String namespace, List<MetricDatum> data) {
+        this.data.addAll(data);
+    }
+
+    /** Returns a copy of every datum sent to this sink since it was created or last cleared. */
+    public synchronized List<MetricDatum> getData() {
+        return new ArrayList<MetricDatum>(data);
+    }
+
+    public synchronized void clear() {
+        data.clear();
+    }
+
+    @Override
+    public void close() {}
+}
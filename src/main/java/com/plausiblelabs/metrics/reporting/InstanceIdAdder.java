@@ -14,30 +14,32 @@ import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpConnectionParams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.amazonaws.services.cloudwatch.model.Dimension;
 import com.yammer.metrics.core.Metric;
 import com.yammer.metrics.core.MetricName;
-import com.yammer.metrics.core.MetricPredicate;
 
 class InstanceIdAdder implements DimensionAdder {
     private static final Logger LOG = LoggerFactory.getLogger(InstanceIdAdder.class);
 
-    private final MetricPredicate predicate;
+    /**
+     * The metadata server answers in milliseconds inside EC2; outside it, connections to it can hang, so don't let the
+     * fetch hold up a report for long.
+     */
+    private static final int FETCH_TIMEOUT_MILLIS = 1000;
 
     private Collection<Dimension> toSend = Collections.singletonList(new Dimension().withName("InstanceId").withValue("unknown"));
     private boolean attemptedFetchingInstanceId;
     private String instanceId;
     private long lastAttemptMillis;
 
-    public InstanceIdAdder(MetricPredicate predicate) {
-        this.predicate = predicate;
-    }
+    /** Fetches the instance id from the EC2 metadata server. */
+    public InstanceIdAdder() {}
 
-    public InstanceIdAdder(MetricPredicate predicate, String instanceId) {
-        this(predicate);
+    public InstanceIdAdder(String instanceId) {
         setInstanceId(instanceId);
     }
 
@@ -52,6 +54,8 @@ class InstanceIdAdder implements DimensionAdder {
 
     private void fetchInstanceId() {
         DefaultHttpClient httpClient = new DefaultHttpClient();
+        HttpConnectionParams.setConnectionTimeout(httpClient.getParams(), FETCH_TIMEOUT_MILLIS);
+        HttpConnectionParams.setSoTimeout(httpClient.getParams(), FETCH_TIMEOUT_MILLIS);
         try {
             HttpGet get = new HttpGet("http://169.254.169.254/latest/meta-data/instance-id");
             HttpResponse resp = httpClient.execute(get);
@@ -79,9 +83,6 @@ class InstanceIdAdder implements DimensionAdder {
 
     @Override
     public Collection<Dimension> generate(MetricName name, Metric metric) {
-        if (!predicate.matches(name, metric)) {
-            return Collections.emptyList();
-        }
         return generateJVMDimensions();
     }
 
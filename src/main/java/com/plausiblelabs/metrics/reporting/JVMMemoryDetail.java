@@ -0,0 +1,161 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+
+/**
+ * <p>Reads the memory the heap and non-heap totals hide: the direct and mapped buffer pools, each memory pool such as
+ * metaspace and the survivor spaces, and the code cache, whose exhaustion turns off the JIT.</p>
+ *
+ * <p>The pools are looked up and their metric names built once, so each read is a pass over the pools' MXBeans that
+ * only updates the values. Not thread safe; only used from the reporting thread.</p>
+ */
+class JVMMemoryDetail {
+    /** A value to send, reused from read to read. */
+    static class Reading {
+        final String name;
+        final StandardUnit unit;
+        double value;
+
+        Reading(String name, StandardUnit unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+    }
+
+    private static class BufferPool {
+        final BufferPoolMXBean bean;
+        final Reading count, capacity, used;
+
+        BufferPool(BufferPoolMXBean bean) {
+            this.bean = bean;
+            String prefix = "jvm.memory.buffer_pool." + sanitize(bean.getName());
+            count = new Reading(prefix + ".count", StandardUnit.Count);
+            capacity = new Reading(prefix + ".capacity", StandardUnit.Bytes);
+            used = new Reading(prefix + ".used", StandardUnit.Bytes);
+        }
+    }
+
+    private static class MemoryPool {
+        final MemoryPoolMXBean bean;
+        final boolean codeCache;
+        final Reading used, committed, peakUsed, usage;
+
+        MemoryPool(MemoryPoolMXBean bean) {
+            this.bean = bean;
+            // A single pool until Java 9, then split into segments
+            codeCache = bean.getName().equals("Code Cache") || bean.getName().startsWith("CodeHeap");
+            String prefix = "jvm.memory.pool." + sanitize(bean.getName());
+            used = new Reading(prefix + ".used", StandardUnit.Bytes);
+            committed = new Reading(prefix + ".committed", StandardUnit.Bytes);
+            peakUsed = new Reading(prefix + ".peak_used", StandardUnit.Bytes);
+            usage = new Reading(prefix + ".usage", StandardUnit.Percent);
+        }
+    }
+
+    private final List<BufferPool> bufferPools = new ArrayList<BufferPool>();
+    private final List<MemoryPool> memoryPools = new ArrayList<MemoryPool>();
+    private final Reading codeCacheUsed = new Reading("jvm.memory.code_cache.used", StandardUnit.Bytes);
+    private final Reading codeCacheMax = new Reading("jvm.memory.code_cache.max", StandardUnit.Bytes);
+    private final Reading codeCacheUsage = new Reading("jvm.memory.code_cache.usage", StandardUnit.Percent);
+    private final boolean hasCodeCache;
+
+    private final List<Reading> readings = new ArrayList<Reading>();
+
+    JVMMemoryDetail() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            bufferPools.add(new BufferPool(pool));
+        }
+        boolean codeCache = false;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryPool memoryPool = new MemoryPool(pool);
+            memoryPools.add(memoryPool);
+            codeCache |= memoryPool.codeCache;
+        }
+        hasCodeCache = codeCache;
+    }
+
+    /**
+     * Returns the current values. The list and its readings are reused by the next read.
+     */
+    List<Reading> read() {
+        readings.clear();
+        for (BufferPool pool : bufferPools) {
+            add(pool.count, pool.bean.getCount());
+            add(pool.capacity, pool.bean.getTotalCapacity());
+            add(pool.used, pool.bean.getMemoryUsed());
+        }
+        long codeCacheUsedBytes = 0, codeCacheMaxBytes = 0;
+        boolean codeCacheUnbounded = false;
+        for (MemoryPool pool : memoryPools) {
+            if (!pool.bean.isValid()) {
+                continue;
+            }
+            MemoryUsage usage = pool.bean.getUsage();
+            add(pool.used, usage.getUsed());
+            add(pool.committed, usage.getCommitted());
+            MemoryUsage peak = pool.bean.getPeakUsage();
+            if (peak != null) {
+                add(pool.peakUsed, peak.getUsed());
+            }
+            // Pools without a maximum, like metaspace by default, can't be full
+            if (usage.getMax() > 0) {
+                add(pool.usage, 100.0 * usage.getUsed() / usage.getMax());
+            }
+            if (pool.codeCache) {
+                codeCacheUsedBytes += usage.getUsed();
+                if (usage.getMax() > 0) {
+                    codeCacheMaxBytes += usage.getMax();
+                } else {
+                    codeCacheUnbounded = true;
+                }
+            }
+        }
+        if (hasCodeCache) {
+            add(codeCacheUsed, codeCacheUsedBytes);
+            if (!codeCacheUnbounded && codeCacheMaxBytes > 0) {
+                add(codeCacheMax, codeCacheMaxBytes);
+                add(codeCacheUsage, 100.0 * codeCacheUsedBytes / codeCacheMaxBytes);
+            }
+        }
+        return readings;
+    }
+
+    private void add(Reading reading, double value) {
+        // MXBeans report -1 for values they can't provide
+        if (value < 0) {
+            return;
+        }
+        reading.value = value;
+        readings.add(reading);
+    }
+
+    /** Lowercases the given pool name, replacing spaces and punctuation with underscores. */
+    private static String sanitize(String poolName) {
+        StringBuilder sb = new StringBuilder(poolName.length());
+        boolean separator = false;
+        for (char c : poolName.toLowerCase(Locale.US).toCharArray()) {
+            if (Character.isLetterOrDigit(c)) {
+                if (separator && sb.length() > 0) {
+                    sb.append('_');
+                }
+                sb.append(c);
+                separator = false;
+            } else {
+                separator = true;
+            }
+        }
+        return sb.toString();
+    }
+}
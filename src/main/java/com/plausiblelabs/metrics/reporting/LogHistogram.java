@@ -0,0 +1,108 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.Arrays;
+
+/**
+ * <p>A fixed-memory histogram of non-negative longs. Values below 8 are counted exactly; larger values are counted in
+ * 8 buckets per power of two, so percentiles are accurate to within 12.5%. Min, max, sum and count are exact.</p>
+ *
+ * <p>Not thread safe; callers synchronize.</p>
+ */
+class LogHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final long[] buckets = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long count, sum;
+    private long min = Long.MAX_VALUE, max;
+
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets[index(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /** Adds everything recorded in other to this histogram. */
+    void merge(LogHistogram other) {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] += other.buckets[i];
+        }
+        count += other.count;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    long count() {
+        return count;
+    }
+
+    long sum() {
+        return sum;
+    }
+
+    /** The smallest recorded value, or 0 if nothing has been recorded. */
+    long min() {
+        return count == 0 ? 0 : min;
+    }
+
+    long max() {
+        return max;
+    }
+
+    /**
+     * The upper bound of the bucket holding the given quantile, capped at the largest recorded value. Returns 0 if
+     * nothing has been recorded.
+     * @param quantile between 0 and 1
+     */
+    long percentile(double quantile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && buckets[i] > 0) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    void reset() {
+        Arrays.fill(buckets, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        return lower + width - 1;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+
+/**
+ * Logs the metrics that would have been sent when CloudWatch is disabled and no other sink is configured. Each report
+ * is summarized in a single line, and only written out in full at debug level, so a dry run costs next to nothing.
+ */
+class LoggingSink implements MetricSink {
+    private static final Logger LOG = LoggerFactory.getLogger(CloudWatchReporter.class);
+
+    @Override
+    public void send(String namespace, List<MetricDatum> data) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Not sending {} metrics to {}: {}", new Object[] {data.size(), namespace, data});
+        } else if (LOG.isInfoEnabled()) {
+            int statisticSets = 0;
+            for (MetricDatum datum : data) {
+                if (datum.getStatisticValues() != null) {
+                    statisticSets++;
+                }
+            }
+            LOG.info("Not sending {} metrics to {}, {} of them statistic sets. Enable debug logging to see them.",
+                     new Object[] {data.size(), namespace, statisticSets});
+        }
+    }
+
+    @Override
+    public void close() {}
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.List;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+
+/**
+ * Receives the metrics gathered by a {@link CloudWatchReporter} in each report. See
+ * {@link CloudWatchReporter.Enabler#withSink} to use.
+ */
+public interface MetricSink {
+    /**
+     * Sends the data gathered in a single report. The data have already been named, trimmed to the values CloudWatch
+     * accepts and coalesced as they'd be sent to CloudWatch.
+     * @param namespace the reporter's namespace
+     * @param data every datum in the report
+     */
+    void send(String namespace, List<MetricDatum> data) throws Exception;
+
+    /**
+     * Releases any resources held by the sink. Called when the reporter is shut down.
+     */
+    void close() throws Exception;
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+/**
+ * What a {@link CloudWatchReporter} does when reports fall behind their schedule, ie when a report is starting a full
+ * period or more after it was due because an earlier report took longer than the period. See
+ * {@link CloudWatchReporter.Enabler#withOverrunPolicy} to use.
+ */
+public enum OverrunPolicy {
+    /**
+     * Drops the reports that were missed and waits for the next one that's on schedule.
+     */
+    SKIP,
+
+    /**
+     * Runs a single report for all the missed ones right away, then drops the rest of the missed reports. The late
+     * report needs nothing merged into it to stand in for the missed ones: counters, meters, timers and histograms
+     * send their running totals, rates and samples, which already include everything recorded while reports were
+     * missed, and values covering an interval, such as GC telemetry, cover everything since the previous report.
+     */
+    COALESCE,
+
+    /**
+     * Runs every report, but leaves out the metrics matching the low priority predicate until reports are back on
+     * schedule.
+     */
+    SHED
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.Collection;
+import java.util.Collections;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+
+/**
+ * Adds another adder's dimensions to only the metrics matching a predicate. Each reporter compiles its own copy through
+ * its {@link PredicateMatchCache}, so the predicate is evaluated once per metric rather than on every report.
+ */
+class PredicateDimensionAdder implements DimensionAdder {
+    private final MetricPredicate predicate;
+    private final DimensionAdder adder;
+
+    PredicateDimensionAdder(MetricPredicate predicate, DimensionAdder adder) {
+        this.predicate = predicate;
+        this.adder = adder;
+    }
+
+    /** Returns a copy of this adder whose predicate is backed by the given cache. */
+    PredicateDimensionAdder compile(PredicateMatchCache cache) {
+        return new PredicateDimensionAdder(cache.compile(predicate), adder);
+    }
+
+    @Override
+    public Collection<Dimension> generate(MetricName name, Metric metric) {
+        if (!predicate.matches(name, metric)) {
+            return Collections.emptyList();
+        }
+        return adder.generate(name, metric);
+    }
+
+    @Override
+    public Collection<Dimension> generateJVMDimensions() {
+        return adder.generateJVMDimensions();
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+import com.yammer.metrics.core.MetricsRegistryListener;
+
+/**
+ * <p>Evaluates predicates once per metric rather than on every report. Each metric in the registry is given an
+ * ordinal when it's added, and each compiled predicate keeps a bit per ordinal with its result for that metric. The
+ * bits are only computed when a metric is added, so matching is a map and bit lookup afterwards.</p>
+ *
+ * <p>Add as a listener on the registry whose metrics will be matched. Metrics the cache hasn't been told about, such
+ * as those from another registry, fall back to the underlying predicate.</p>
+ */
+class PredicateMatchCache implements MetricsRegistryListener {
+    private class CompiledPredicate implements MetricPredicate {
+        private final MetricPredicate predicate;
+        private final BitSet matches = new BitSet();
+
+        CompiledPredicate(MetricPredicate predicate) {
+            this.predicate = predicate;
+        }
+
+        PredicateMatchCache cache() {
+            return PredicateMatchCache.this;
+        }
+
+        @Override
+        public boolean matches(MetricName name, Metric metric) {
+            synchronized (PredicateMatchCache.this) {
+                Integer ordinal = ordinals.get(name);
+                if (ordinal != null && metrics.get(ordinal) == metric) {
+                    return matches.get(ordinal);
+                }
+            }
+            return predicate.matches(name, metric);
+        }
+    }
+
+    private final Map<MetricName, Integer> ordinals = new HashMap<MetricName, Integer>();
+    private final List<MetricName> names = new ArrayList<MetricName>();
+    private final List<Metric> metrics = new ArrayList<Metric>();
+    private final List<CompiledPredicate> compiled = new ArrayList<CompiledPredicate>();
+    private int[] freeOrdinals = new int[16];
+    private int freeCount;
+
+    /**
+     * Returns a predicate matching the same metrics as the given one, backed by this cache.
+     */
+    synchronized MetricPredicate compile(MetricPredicate predicate) {
+        // Predicates compiled by another cache are compiled again, as that cache may stop hearing about the registry
+        if (predicate == MetricPredicate.ALL
+            || (predicate instanceof CompiledPredicate && ((CompiledPredicate) predicate).cache() == this)) {
+            return predicate;
+        }
+        CompiledPredicate result = new CompiledPredicate(predicate);
+        for (int i = 0; i < metrics.size(); i++) {
+            if (metrics.get(i) != null) {
+                result.matches.set(i, predicate.matches(names.get(i), metrics.get(i)));
+            }
+        }
+        compiled.add(result);
+        return result;
+    }
+
+    @Override
+    public synchronized void onMetricAdded(MetricName name, Metric metric) {
+        Integer existing = ordinals.get(name);
+        int ordinal;
+        if (existing != null) {
+            ordinal = existing;
+        } else if (freeCount > 0) {
+            ordinal = freeOrdinals[--freeCount];
+        } else {
+            ordinal = metrics.size();
+            names.add(null);
+            metrics.add(null);
+        }
+        ordinals.put(name, ordinal);
+        names.set(ordinal, name);
+        metrics.set(ordinal, metric);
+        for (CompiledPredicate predicate : compiled) {
+            predicate.matches.set(ordinal, predicate.predicate.matches(name, metric));
+        }
+    }
+
+    @Override
+    public synchronized void onMetricRemoved(MetricName name) {
+        Integer ordinal = ordinals.remove(name);
+        if (ordinal == null) {
+            return;
+        }
+        names.set(ordinal, null);
+        metrics.set(ordinal, null);
+        for (CompiledPredicate predicate : compiled) {
+            predicate.matches.clear(ordinal);
+        }
+        if (freeCount == freeOrdinals.length) {
+            freeOrdinals = Arrays.copyOf(freeOrdinals, freeCount * 2);
+        }
+        freeOrdinals[freeCount++] = ordinal;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+
+/**
+ * Isolates a sink behind a bounded queue and its own worker thread, so a slow or failing sink holds up neither the
+ * reporter nor the other sinks. Reports that arrive while the queue is full are dropped.
+ */
+class QueuedSink implements MetricSink {
+    private static final Logger LOG = LoggerFactory.getLogger(QueuedSink.class);
+
+    /** How long close waits for queued reports to be sent. */
+    private static final long CLOSE_WAIT_MILLIS = 5000;
+
+    /** How long close waits for the worker to stop once it's been interrupted. */
+    private static final long INTERRUPT_WAIT_MILLIS = 1000;
+
+    private static class Report {
+        final String namespace;
+        final List<MetricDatum> data;
+        /** Null if nothing's waiting for the report to be sent. */
+        final SinkAcknowledgement acknowledgement;
+
+        Report(String namespace, List<MetricDatum> data, SinkAcknowledgement acknowledgement) {
+            this.namespace = namespace;
+            this.data = data;
+            this.acknowledgement = acknowledgement;
+        }
+    }
+
+    private final MetricSink sink;
+    private final BlockingQueue<Report> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicBoolean loggedDrop = new AtomicBoolean();
+    /** The report the worker is sending. Whoever clears it answers its acknowledgement. */
+    private final AtomicReference<Report> sending = new AtomicReference<Report>();
+    private final Thread worker;
+    private volatile boolean closed;
+    /** Set when close gives up waiting, so the worker stops taking reports. */
+    private volatile boolean abandoned;
+
+    QueuedSink(MetricSink sink, int capacity) {
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<Report>(capacity);
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "cloudwatch-reporter-sink-" + sink.getClass().getSimpleName());
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public void send(String namespace, List<MetricDatum> data) {
+        send(namespace, data, null);
+    }
+
+    /**
+     * Queues the given report, telling the acknowledgement once the sink has taken it. A report that's dropped, or
+     * sent once the sink is closed and nothing will take it from the queue, fails the acknowledgement straight away.
+     */
+    void send(String namespace, List<MetricDatum> data, SinkAcknowledgement acknowledgement) {
+        if (closed) {
+            if (acknowledgement != null) {
+                acknowledgement.failed(new IllegalStateException(sink + " is closed"));
+            }
+            return;
+        }
+        if (!queue.offer(new Report(namespace, data, acknowledgement))) {
+            dropped.incrementAndGet();
+            if (loggedDrop.compareAndSet(false, true)) {
+                LOG.warn("The queue for {} is full; dropping reports until it catches up. Further drops won't be logged.", sink);
+            }
+            if (acknowledgement != null) {
+                acknowledgement.failed(new IllegalStateException("The queue for " + sink + " is full"));
+            }
+        }
+    }
+
+    /** The number of reports dropped because the queue was full since this was last called. */
+    long takeDropped() {
+        return dropped.getAndSet(0);
+    }
+
+    /**
+     * Waits for the queued reports to be sent, then closes the sink. If the sink doesn't catch up in time, the worker
+     * is interrupted and the reports still waiting fail their acknowledgements, so nothing waits on them forever.
+     */
+    @Override
+    public void close() throws Exception {
+        closed = true;
+        worker.join(CLOSE_WAIT_MILLIS);
+        if (worker.isAlive()) {
+            abandoned = true;
+            worker.interrupt();
+            worker.join(INTERRUPT_WAIT_MILLIS);
+            Report stuck = sending.getAndSet(null);
+            if (stuck != null) {
+                fail(stuck, new IllegalStateException(sink + " didn't finish sending before it was closed"));
+            }
+        }
+        List<Report> unsent = new ArrayList<Report>();
+        queue.drainTo(unsent);
+        if (!unsent.isEmpty()) {
+            LOG.warn("Closing {} with {} reports unsent", sink, unsent.size());
+        }
+        for (Report report : unsent) {
+            fail(report, new IllegalStateException(sink + " was closed before the report was sent"));
+        }
+        sink.close();
+    }
+
+    private static void fail(Report report, Exception cause) {
+        if (report.acknowledgement != null) {
+            report.acknowledgement.failed(cause);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return sink.toString();
+    }
+
+    /** Sends reports until closed and the queue is empty. Reports left when interrupted are failed by close. */
+    private void drain() {
+        while (!abandoned && (!closed || !queue.isEmpty())) {
+            Report report;
+            try {
+                report = queue.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (report == null) {
+                continue;
+            }
+            sending.set(report);
+            try {
+                sink.send(report.namespace, report.data);
+                if (sending.compareAndSet(report, null) && report.acknowledgement != null) {
+                    report.acknowledgement.accepted();
+                }
+            } catch (Exception e) {
+                if (sending.compareAndSet(report, null)) {
+                    fail(report, e);
+                }
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Error writing to " + sink, e);
+                } else {
+                    LOG.warn("Error writing to {}: {}", sink, e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.regex.Pattern;
+
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
+
+/**
+ * <p>Combines scoped metrics sharing a group, type and name into a single series named as if they had no scope. Pass
+ * to {@link CloudWatchReporter.Enabler#withRollup} to have a reporter send the combined series in place of one series
+ * per scope.</p>
+ *
+ * <p>Counters are summed, as are the rates and counts of meters and timers. The values of histograms and timers are
+ * merged so their percentiles cover every scope; the merged percentiles are approximate, as each scope keeps its own
+ * sample. Gauges and metrics without a scope are never rolled up.</p>
+ */
+public class RollupRule implements MetricPredicate {
+    private final Pattern group, type, name;
+    private int topScopes;
+
+    /**
+     * Rolls up scoped metrics whose group, type and name match the given regular expressions.
+     * @param group matched against the whole group, or null to match any group
+     * @param type matched against the whole type, or null to match any type
+     * @param name matched against the whole name, or null to match any name
+     */
+    public RollupRule(String group, String type, String name) {
+        this.group = group == null ? null : Pattern.compile(group);
+        this.type = type == null ? null : Pattern.compile(type);
+        this.name = name == null ? null : Pattern.compile(name);
+    }
+
+    /**
+     * Also sends the given number of busiest scopes as their own series, as they would be sent without the rollup.
+     * Counters and histograms are ranked by count, and meters and timers by one minute rate. Defaults to none.
+     * @param count the number of scopes to send separately
+     * @return this RollupRule.
+     */
+    public RollupRule withTopScopes(int count) {
+        this.topScopes = count;
+        return this;
+    }
+
+    int topScopes() {
+        return topScopes;
+    }
+
+    /**
+     * If the given metric is rolled up by this rule.
+     */
+    @Override
+    public boolean matches(MetricName metricName, Metric metric) {
+        return metricName.hasScope() && matches(group, metricName.getGroup()) && matches(type, metricName.getType())
+            && matches(name, metricName.getName());
+    }
+
+    private static boolean matches(Pattern pattern, String value) {
+        return pattern == null || pattern.matcher(value).matches();
+    }
+}
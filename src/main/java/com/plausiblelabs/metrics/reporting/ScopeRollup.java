@@ -0,0 +1,190 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.Metered;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.Sampling;
+import com.yammer.metrics.core.Summarizable;
+import com.yammer.metrics.core.Timer;
+import com.yammer.metrics.stats.Snapshot;
+
+/**
+ * <p>Accumulates the scopes of one metric rolled up by a {@link RollupRule} over a single report. Every scope added must
+ * be the same kind of metric, with the same units.</p>
+ *
+ * <p>Lifetime means and standard deviations are pooled from each scope's count, mean and standard deviation, so they're
+ * what a single metric recording every scope's values would have.</p>
+ */
+class ScopeRollup {
+    enum Kind {
+        COUNTER, METER, HISTOGRAM, TIMER;
+
+        /** The kind of the given metric, or null if it can't be rolled up. */
+        static Kind of(Metric metric) {
+            if (metric instanceof Counter) {
+                return COUNTER;
+            } else if (metric instanceof Timer) {
+                return TIMER;
+            } else if (metric instanceof Histogram) {
+                return HISTOGRAM;
+            } else if (metric instanceof Metered) {
+                return METER;
+            }
+            return null;
+        }
+    }
+
+    /** A scope ranked by how busy it was. */
+    static class Member {
+        final MetricName name;
+        final Metric metric;
+        final double rank;
+
+        Member(MetricName name, Metric metric, double rank) {
+            this.name = name;
+            this.metric = metric;
+            this.rank = rank;
+        }
+    }
+
+    private static final Comparator<Member> LEAST_BUSY_FIRST = new Comparator<Member>() {
+        @Override
+        public int compare(Member a, Member b) {
+            return Double.compare(a.rank, b.rank);
+        }
+    };
+
+    /** The rolled up metric's name, without a scope. */
+    final MetricName name;
+    /** The first scope added, used for the rolled up series' units and dimensions. */
+    final Metric first;
+    final Kind kind;
+
+    private final int topScopes;
+    private final TopN<Member> top;
+
+    private double count, oneMinuteRate, fiveMinuteRate, fifteenMinuteRate, meanRate;
+
+    private final List<double[]> samples = new ArrayList<double[]>();
+    private int sampleCount;
+    private long distributionCount;
+    private double min = Double.MAX_VALUE, max = -Double.MAX_VALUE, sum, sumOfSquares;
+
+    ScopeRollup(MetricName name, Metric first, Kind kind, int topScopes) {
+        this.name = name;
+        this.first = first;
+        this.kind = kind;
+        this.topScopes = topScopes;
+        this.top = new TopN<Member>(topScopes, LEAST_BUSY_FIRST);
+    }
+
+    void add(MetricName scoped, Metric metric) {
+        double rank;
+        if (kind == Kind.COUNTER) {
+            rank = ((Counter) metric).count();
+            count += rank;
+        } else {
+            Metered meter = kind == Kind.HISTOGRAM ? null : (Metered) metric;
+            if (meter != null) {
+                count += meter.count();
+                oneMinuteRate += meter.oneMinuteRate();
+                fiveMinuteRate += meter.fiveMinuteRate();
+                fifteenMinuteRate += meter.fifteenMinuteRate();
+                meanRate += meter.meanRate();
+            }
+            if (kind == Kind.METER) {
+                rank = meter.oneMinuteRate();
+            } else {
+                long scopeCount = kind == Kind.TIMER ? ((Timer) metric).count() : ((Histogram) metric).count();
+                addDistribution(scopeCount, (Summarizable) metric, ((Sampling) metric).getSnapshot());
+                rank = meter != null ? meter.oneMinuteRate() : scopeCount;
+            }
+        }
+        if (topScopes > 0) {
+            top.offer(new Member(scoped, metric, rank));
+        }
+    }
+
+    private void addDistribution(long scopeCount, Summarizable summary, Snapshot snapshot) {
+        double[] values = snapshot.getValues();
+        samples.add(values);
+        sampleCount += values.length;
+        if (scopeCount == 0) {
+            return;
+        }
+        distributionCount += scopeCount;
+        min = Math.min(min, summary.min());
+        max = Math.max(max, summary.max());
+        sum += summary.sum();
+        double stdDev = summary.stdDev();
+        double mean = summary.mean();
+        sumOfSquares += (scopeCount - 1) * stdDev * stdDev + scopeCount * mean * mean;
+    }
+
+    /** The summed counter values, or the summed counts of meters and timers. */
+    double count() {
+        return count;
+    }
+
+    double oneMinuteRate() {
+        return oneMinuteRate;
+    }
+
+    double fiveMinuteRate() {
+        return fiveMinuteRate;
+    }
+
+    double fifteenMinuteRate() {
+        return fifteenMinuteRate;
+    }
+
+    double meanRate() {
+        return meanRate;
+    }
+
+    /** A snapshot of every scope's sampled values. */
+    Snapshot snapshot() {
+        double[] merged = new double[sampleCount];
+        int offset = 0;
+        for (double[] values : samples) {
+            System.arraycopy(values, 0, merged, offset, values.length);
+            offset += values.length;
+        }
+        return new Snapshot(merged);
+    }
+
+    double min() {
+        return distributionCount == 0 ? 0 : min;
+    }
+
+    double max() {
+        return distributionCount == 0 ? 0 : max;
+    }
+
+    double mean() {
+        return distributionCount == 0 ? 0 : sum / distributionCount;
+    }
+
+    double stdDev() {
+        if (distributionCount <= 1) {
+            return 0;
+        }
+        double mean = mean();
+        return Math.sqrt(Math.max(0, (sumOfSquares - distributionCount * mean * mean) / (distributionCount - 1)));
+    }
+
+    /** The busiest scopes, busiest first. */
+    List<Member> topScopes() {
+        return top.sorted();
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.services.cloudwatch.model.Dimension;
+import com.amazonaws.services.cloudwatch.model.MetricDatum;
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+
+/**
+ * <p>Collects the values sent in a single flush window and coalesces values for the same series, ie the same name,
+ * unit and dimensions, into a single datum. A series with a single value is sent as a plain value; a series with
+ * several values, or that was given a statistic set, is sent as a <code>StatisticSet</code>.</p>
+ *
+ * <p>Series are kept in an open-addressing table that's reused across windows, so a registry that reports the same
+ * series every tick doesn't allocate keys or grow the table after the first tick. Series that weren't seen in the
+ * current window are dropped the next time the table needs to grow.</p>
+ *
+ * <p>Not thread safe; only used from the reporting thread.</p>
+ */
+class SeriesBatcher {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] hashes;
+    private String[] names;
+    private StandardUnit[] units;
+    private Object[] dimensions;
+    private long[] windows;
+    private Date[] timestamps;
+    private double[] counts, sums, mins, maxes;
+    /** If a statistic set rather than a single value was added to the series in the current window. */
+    private boolean[] statistics;
+
+    /** Slots used in the current window in the order they were first added. */
+    private int[] order;
+    private int size;
+
+    /** Slots holding a series, including those not seen in the current window. */
+    private int occupied;
+
+    /** Starts at 1 so the zeroed windows array doesn't match the current window. */
+    private long window = 1;
+
+    SeriesBatcher() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        hashes = new int[capacity];
+        names = new String[capacity];
+        units = new StandardUnit[capacity];
+        dimensions = new Object[capacity];
+        windows = new long[capacity];
+        timestamps = new Date[capacity];
+        counts = new double[capacity];
+        sums = new double[capacity];
+        mins = new double[capacity];
+        maxes = new double[capacity];
+        statistics = new boolean[capacity];
+        order = new int[capacity];
+    }
+
+    /** Adds a single value to its series in the current window. */
+    void add(Date timestamp, String name, StandardUnit unit, List<Dimension> dims, double value) {
+        add(timestamp, name, unit, dims, 1, value, value, value, false);
+    }
+
+    /** Adds a set of statistics to its series in the current window. */
+    void add(Date timestamp, String name, StandardUnit unit, List<Dimension> dims, double count, double sum,
+             double min, double max) {
+        add(timestamp, name, unit, dims, count, sum, min, max, true);
+    }
+
+    private void add(Date timestamp, String name, StandardUnit unit, List<Dimension> dims, double count, double sum,
+                     double min, double max, boolean statistic) {
+        int hash = hash(name, unit, dims);
+        int slot = find(hash, name, unit, dims);
+        if (names[slot] == null) {
+            if ((occupied + 1) * 4 > names.length * 3) {
+                rehash();
+                slot = find(hash, name, unit, dims);
+            }
+            hashes[slot] = hash;
+            names[slot] = name;
+            units[slot] = unit;
+            // The reporter reuses dimension lists between values, so keep our own copy for the key
+            dimensions[slot] = new ArrayList<Dimension>(dims);
+            occupied++;
+        }
+        if (windows[slot] != window) {
+            windows[slot] = window;
+            timestamps[slot] = timestamp;
+            counts[slot] = count;
+            sums[slot] = sum;
+            mins[slot] = min;
+            maxes[slot] = max;
+            statistics[slot] = statistic;
+            order[size++] = slot;
+        } else {
+            counts[slot] += count;
+            sums[slot] += sum;
+            mins[slot] = Math.min(mins[slot], min);
+            maxes[slot] = Math.max(maxes[slot], max);
+            statistics[slot] |= statistic;
+        }
+    }
+
+    /**
+     * Returns a datum for every series added in the current window in the order they were first added, and starts a
+     * new window.
+     */
+    List<MetricDatum> drain() {
+        List<MetricDatum> data = new ArrayList<MetricDatum>(size);
+        for (int i = 0; i < size; i++) {
+            data.add(toDatum(order[i]));
+        }
+        clear();
+        return data;
+    }
+
+    /** Discards everything added in the current window and starts a new one. */
+    void clear() {
+        size = 0;
+        window++;
+    }
+
+    @SuppressWarnings("unchecked")
+    private MetricDatum toDatum(int slot) {
+        MetricDatum datum = new MetricDatum()
+            .withTimestamp(timestamps[slot])
+            .withMetricName(names[slot])
+            .withDimensions((List<Dimension>) dimensions[slot])
+            .withUnit(units[slot]);
+        if (counts[slot] == 1 && !statistics[slot]) {
+            return datum.withValue(sums[slot]);
+        }
+        // Summing values that were each trimmed to what CloudWatch accepts can still exceed it
+        double sum = Math.max(-CloudWatchReporter.LARGEST_SENDABLE,
+                              Math.min(CloudWatchReporter.LARGEST_SENDABLE, sums[slot]));
+        return datum.withStatisticValues(new StatisticSet()
+                                         .withSampleCount(counts[slot])
+                                         .withSum(sum)
+                                         .withMinimum(mins[slot])
+                                         .withMaximum(maxes[slot]));
+    }
+
+    private int find(int hash, String name, StandardUnit unit, List<Dimension> dims) {
+        int mask = names.length - 1;
+        int slot = hash & mask;
+        while (names[slot] != null) {
+            if (hashes[slot] == hash && units[slot] == unit && names[slot].equals(name)
+                && dimensions[slot].equals(dims)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Rebuilds the table keeping only the series seen in the current window, doubling its size if those alone would
+     * still fill more than half of it.
+     */
+    private void rehash() {
+        int[] oldHashes = hashes;
+        String[] oldNames = names;
+        StandardUnit[] oldUnits = units;
+        Object[] oldDimensions = dimensions;
+        long[] oldWindows = windows;
+        Date[] oldTimestamps = timestamps;
+        double[] oldCounts = counts, oldSums = sums, oldMins = mins, oldMaxes = maxes;
+        boolean[] oldStatistics = statistics;
+        int[] oldOrder = Arrays.copyOf(order, size);
+
+        int capacity = size * 2 >= oldNames.length ? oldNames.length * 2 : oldNames.length;
+        allocate(capacity);
+        occupied = 0;
+        int mask = capacity - 1;
+        for (int i = 0; i < oldOrder.length; i++) {
+            int old = oldOrder[i];
+            int slot = oldHashes[old] & mask;
+            while (names[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = oldHashes[old];
+            names[slot] = oldNames[old];
+            units[slot] = oldUnits[old];
+            dimensions[slot] = oldDimensions[old];
+            windows[slot] = oldWindows[old];
+            timestamps[slot] = oldTimestamps[old];
+            counts[slot] = oldCounts[old];
+            sums[slot] = oldSums[old];
+            mins[slot] = oldMins[old];
+            maxes[slot] = oldMaxes[old];
+            statistics[slot] = oldStatistics[old];
+            order[i] = slot;
+            occupied++;
+        }
+    }
+
+    private static int hash(String name, StandardUnit unit, List<Dimension> dims) {
+        int h = name.hashCode();
+        h = 31 * h + unit.hashCode();
+        h = 31 * h + dims.hashCode();
+        // Spread the high bits down since the table index only uses the low ones
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Completes once each of a report's sinks has accepted or failed to take it, failing with the first sink's exception
+ * if any failed.
+ */
+class SinkAcknowledgement extends FutureTask<Void> {
+    private static final Callable<Void> NOTHING = new Callable<Void>() {
+        @Override
+        public Void call() {
+            return null;
+        }
+    };
+
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile Throwable failure;
+
+    SinkAcknowledgement() {
+        super(NOTHING);
+    }
+
+    /**
+     * Waits for the given number of sinks. Completes immediately if it's 0.
+     */
+    void expect(int sinks) {
+        if (outstanding.addAndGet(sinks) == 0) {
+            complete();
+        }
+    }
+
+    void accepted() {
+        if (outstanding.decrementAndGet() == 0) {
+            complete();
+        }
+    }
+
+    void failed(Throwable cause) {
+        if (failure == null) {
+            failure = cause;
+        }
+        accepted();
+    }
+
+    /** Completes without waiting for any sinks that haven't answered, as when the report couldn't be gathered. */
+    void abort(Throwable cause) {
+        setException(cause);
+    }
+
+    private void complete() {
+        if (failure != null) {
+            setException(failure);
+        } else {
+            set(null);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the greatest of the items offered to it, up to a fixed number. The least of the kept items is held at the head
+ * of a heap, so an offer is a single comparison unless the item displaces it. Not thread safe.
+ */
+class TopN<T> {
+    private final int size;
+    private final Comparator<? super T> order;
+    private final PriorityQueue<T> heap;
+
+    /**
+     * @param size the number of items to keep, which may be 0
+     * @param order orders the items least first
+     */
+    TopN(int size, Comparator<? super T> order) {
+        this.size = size;
+        this.order = order;
+        this.heap = new PriorityQueue<T>(Math.max(1, size), order);
+    }
+
+    void offer(T item) {
+        if (heap.size() < size) {
+            heap.add(item);
+        } else if (size > 0 && order.compare(heap.peek(), item) < 0) {
+            heap.poll();
+            heap.add(item);
+        }
+    }
+
+    /** The kept items, in no particular order. */
+    Collection<T> items() {
+        return Collections.unmodifiableCollection(heap);
+    }
+
+    /** The kept items, greatest first. */
+    List<T> sorted() {
+        List<T> items = new ArrayList<T>(heap);
+        Collections.sort(items, Collections.reverseOrder(order));
+        return items;
+    }
+
+    void clear() {
+        heap.clear();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.amazonaws.services.cloudwatch.model.StandardUnit;
+
+/**
+ * <p>Converts values recorded in one unit to the unit CloudWatch is sent. Conversions are done in floating point, so
+ * a nanosecond timer's 850ns percentile is sent as 0.85 microseconds rather than truncated to 0.</p>
+ *
+ * <p>There's one converter per time unit, built when the class is loaded, so finding a timer's converter is an array
+ * lookup.</p>
+ */
+class UnitConverter {
+    /** Sends values as recorded, without a unit. */
+    static final UnitConverter NONE = new UnitConverter(null, StandardUnit.None, 1, 1);
+
+    private static final UnitConverter[] TIMERS = new UnitConverter[TimeUnit.values().length];
+    static {
+        for (TimeUnit recorded : TimeUnit.values()) {
+            TIMERS[recorded.ordinal()] = forTimeUnit(recorded);
+        }
+    }
+
+    /** The unit the values are recorded in, or null if they aren't times. */
+    final TimeUnit recorded;
+    final StandardUnit unit;
+    /** If CloudWatch doesn't support the recorded unit, so values are sent in another. */
+    final boolean converted;
+    private final double multiplier, divisor;
+    private final AtomicBoolean logged = new AtomicBoolean();
+
+    private UnitConverter(TimeUnit recorded, StandardUnit unit, double multiplier, double divisor) {
+        this.recorded = recorded;
+        this.unit = unit;
+        this.multiplier = multiplier;
+        this.divisor = divisor;
+        this.converted = multiplier != 1 || divisor != 1;
+    }
+
+    /** The converter for timers recording durations in the given unit. */
+    static UnitConverter forTimer(TimeUnit recorded) {
+        return TIMERS[recorded.ordinal()];
+    }
+
+    /**
+     * Returns true the first time it's called for a converter that converts, so the conversion is logged once however
+     * many timers and reporters use it.
+     */
+    boolean firstConversion() {
+        return converted && !logged.get() && logged.compareAndSet(false, true);
+    }
+
+    double convert(double value) {
+        // Only one of these is ever not 1, and both are whole numbers, so scaling by them is exact where it can be
+        return value * multiplier / divisor;
+    }
+
+    private static UnitConverter forTimeUnit(TimeUnit recorded) {
+        switch (recorded) {
+        case MILLISECONDS:
+            return new UnitConverter(recorded, StandardUnit.Milliseconds, 1, 1);
+        case MICROSECONDS:
+            return new UnitConverter(recorded, StandardUnit.Microseconds, 1, 1);
+        case SECONDS:
+            return new UnitConverter(recorded, StandardUnit.Seconds, 1, 1);
+        case NANOSECONDS:
+            return new UnitConverter(recorded, StandardUnit.Microseconds, 1, TimeUnit.MICROSECONDS.toNanos(1));
+        default:
+            // Minutes, hours and days
+            return new UnitConverter(recorded, StandardUnit.Seconds, recorded.toSeconds(1), 1);
+        }
+    }
+}
@@ -1,22 +1,43 @@
 package com.plausiblelabs.metrics.reporting;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Test;
 
+import com.amazonaws.services.cloudwatch.model.Dimension;
 import com.amazonaws.services.cloudwatch.model.MetricDatum;
 import com.amazonaws.services.cloudwatch.model.StandardUnit;
+import com.amazonaws.services.cloudwatch.model.StatisticSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.io.Files;
 import com.yammer.metrics.core.Counter;
 import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricPredicate;
 import com.yammer.metrics.core.MetricsRegistry;
 import com.yammer.metrics.core.Timer;
 import com.yammer.metrics.core.VirtualMachineMetrics;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
 
 public class CloudWatchReporterTest {
     // Use a separate registry for each test to keep the metrics apart
@@ -137,4 +158,815 @@ public class CloudWatchReporterTest {
         assertEquals(1.0, client.putData.get(0).getValue());
 
     }
+
+    @Test
+    public void testCollidingSeriesCoalesced() {
+        // group.type.scope.name and group.type.scope-name sanitize to the same CloudWatch name
+        testRegistry.newCounter(new MetricName("group", "type", "name", "scope")).inc(1);
+        testRegistry.newCounter(new MetricName("group", "type", "scope.name")).inc(3);
+        enabler.withJVMMemory(false).build().run();
+        assertEquals(1, client.putData.size());
+        MetricDatum datum = client.putData.get(0);
+        assertEquals("group.type.scope.name", datum.getMetricName());
+        assertEquals(null, datum.getValue());
+        assertEquals(2.0, datum.getStatisticValues().getSampleCount());
+        assertEquals(4.0, datum.getStatisticValues().getSum());
+        assertEquals(1.0, datum.getStatisticValues().getMinimum());
+        assertEquals(3.0, datum.getStatisticValues().getMaximum());
+    }
+
+    @Test
+    public void testCollidingSeriesSentSeparatelyWithoutCoalescing() {
+        testRegistry.newCounter(new MetricName("group", "type", "name", "scope")).inc(1);
+        testRegistry.newCounter(new MetricName("group", "type", "scope.name")).inc(3);
+        enabler.withJVMMemory(false).withSeriesCoalescing(false).build().run();
+        assertEquals(2, client.putData.size());
+    }
+
+    @Test
+    public void testManySeriesAcrossTicks() {
+        for (int i = 0; i < 500; i++) {
+            testRegistry.newCounter(CloudWatchReporterTest.class, "Counter" + i).inc(i);
+        }
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).build();
+        reporter.run();
+        assertEquals(500, client.putData.size());
+        client.putData.clear();
+        reporter.run();
+        assertEquals(500, client.putData.size());
+        assertEquals(499.0, client.latestPutByName.get("com.plausiblelabs.metrics.reporting.CloudWatchReporterTest.Counter499").getValue());
+    }
+
+    @Test
+    public void testGCTelemetry() throws InterruptedException {
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withJVMGCTelemetry(true).build();
+        try {
+            System.gc();
+            // Notifications are delivered on a separate thread
+            Thread.sleep(200);
+            reporter.run();
+        } finally {
+            reporter.shutdown();
+        }
+        MetricDatum pause = client.latestPutByName.get("jvm.gc.pause");
+        assertTrue(pause.getStatisticValues().getSampleCount() >= 1);
+        assertEquals(StandardUnit.Milliseconds.toString(), pause.getUnit());
+        assertTrue(client.latestPutByName.containsKey("jvm.gc.pause_percentile_0.99"));
+        assertEquals(StandardUnit.BytesSecond.toString(), client.latestPutByName.get("jvm.gc.allocation_rate").getUnit());
+        assertTrue(client.latestPutByName.containsKey("jvm.gc.promotion_rate"));
+    }
+
+    @Test
+    public void testGaugeEvaluatedOnce() {
+        final AtomicInteger evaluations = new AtomicInteger();
+        testRegistry.newGauge(CloudWatchReporterTest.class, "TestGauge", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return evaluations.incrementAndGet();
+            }
+        });
+        enabler.withJVMMemory(false).build().run();
+        assertEquals(1, evaluations.get());
+        assertEquals(1.0, client.putData.get(0).getValue());
+    }
+
+    @Test
+    public void testSlowGaugeSkipped() {
+        testRegistry.newGauge(CloudWatchReporterTest.class, "SlowGauge", new Gauge<Double>() {
+            @Override
+            public Double value() {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return 1.0;
+            }
+        });
+        testRegistry.newGauge(CloudWatchReporterTest.class, "FastGauge", new Gauge<Double>() {
+            @Override
+            public Double value() {
+                return 2.0;
+            }
+        });
+        enabler.withJVMMemory(false)
+            .withGaugeThreads(2, 100, TimeUnit.MILLISECONDS)
+            .withSlowestGauges(1)
+            .build().run();
+        assertEquals(Sets.newHashSet("com.plausiblelabs.metrics.reporting.CloudWatchReporterTest.FastGauge",
+                                     "com.plausiblelabs.metrics.reporting.CloudWatchReporterTest.SlowGauge.evaluationTime"),
+                     client.latestPutByName.keySet());
+        MetricDatum slowest = client.latestPutByName.get("com.plausiblelabs.metrics.reporting.CloudWatchReporterTest.SlowGauge.evaluationTime");
+        assertTrue(slowest.getValue() >= 100);
+        assertEquals(StandardUnit.Milliseconds.toString(), slowest.getUnit());
+    }
+
+    @Test
+    public void testGaugeCacheSharedBetweenReporters() {
+        final AtomicInteger evaluations = new AtomicInteger();
+        testRegistry.newGauge(CloudWatchReporterTest.class, "CachedGauge", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return evaluations.incrementAndGet();
+            }
+        });
+        GaugeCache cache = new GaugeCache().withTTL(MetricPredicate.ALL, 1, TimeUnit.HOURS);
+        enabler.withJVMMemory(false).withGaugeCache(cache);
+        enabler.build().run();
+        enabler.build().run();
+        assertEquals(1, evaluations.get());
+        assertEquals(2, client.putData.size());
+        assertEquals(1.0, client.putData.get(1).getValue());
+    }
+
+    @Test
+    public void testEMFLog() throws IOException {
+        File dir = Files.createTempDir();
+        File log = new File(dir, "metrics.log");
+        testRegistry.newCounter(CloudWatchReporterTest.class, "TestCounter").inc(3);
+        testRegistry.newGauge(CloudWatchReporterTest.class, "Quote\"Gauge", new Gauge<Double>() {
+            @Override
+            public Double value() {
+                return 5.0;
+            }
+        });
+        CloudWatchReporter reporter = enabler
+            .withJVMMemory(false)
+            .withInstanceIdDimension("flask")
+            .withCloudWatchEnabled(false)
+            .withEMFLog(log, 1024 * 1024, 1)
+            .build();
+        reporter.run();
+        reporter.shutdown();
+        List<String> lines = Files.readLines(log, Charset.forName("UTF-8"));
+        assertEquals("Metrics sharing dimensions are written in a single document", 1, lines.size());
+        String line = lines.get(0);
+        assertTrue(line.startsWith("{\"_aws\":{\"Timestamp\":"));
+        assertTrue(line.contains("\"Namespace\":\"testnamespace\",\"Dimensions\":[[\"InstanceId\"]]"));
+        assertTrue(line.contains("{\"Name\":\"com.plausiblelabs.metrics.reporting.CloudWatchReporterTest.TestCounter\",\"Unit\":\"Count\"}"));
+        assertTrue(line.contains("\"InstanceId\":\"flask\""));
+        assertTrue(line.contains("\"com.plausiblelabs.metrics.reporting.CloudWatchReporterTest.TestCounter\":3.0"));
+        assertTrue(line.contains("\"com.plausiblelabs.metrics.reporting.CloudWatchReporterTest.Quote\\\"Gauge\":5.0"));
+        assertEquals(0, client.putData.size());
+    }
+
+    @Test
+    public void testEMFLogStatisticSets() throws Exception {
+        File dir = Files.createTempDir();
+        File log = new File(dir, "metrics.log");
+        testRegistry.newCounter(new MetricName("group", "type", "name", "scope")).inc(1);
+        testRegistry.newCounter(new MetricName("group", "type", "scope.name")).inc(3);
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withCloudWatchEnabled(false)
+            .withEMFLog(log, 1024 * 1024, 1).build();
+        reporter.run();
+        reporter.shutdown();
+        String line = Files.readLines(log, Charset.forName("UTF-8")).get(0);
+        assertTrue("A coalesced series is written as an array of its values",
+                   line.contains("\"group.type.scope.name\":[1.0,3.0]"));
+
+        File large = new File(dir, "large.log");
+        EMFLogSink sink = new EMFLogSink(large, 1024 * 1024, 1);
+        sink.send("testnamespace", Lists.newArrayList(new MetricDatum()
+            .withTimestamp(new Date())
+            .withMetricName("Pauses")
+            .withUnit(StandardUnit.Milliseconds)
+            .withStatisticValues(new StatisticSet().withSampleCount(500.0).withSum(1000.0).withMinimum(1.0)
+                                 .withMaximum(9.0))));
+        sink.close();
+        line = Files.readLines(large, Charset.forName("UTF-8")).get(0);
+        assertTrue(line.contains("{\"Name\":\"Pauses.count\",\"Unit\":\"Count\"}"));
+        assertTrue(line.contains("{\"Name\":\"Pauses.max\",\"Unit\":\"Milliseconds\"}"));
+        assertTrue(line.contains("\"Pauses.count\":500.0,\"Pauses.sum\":1000.0,\"Pauses.min\":1.0,\"Pauses.max\":9.0"));
+    }
+
+    @Test
+    public void testEMFLogRotation() throws IOException {
+        File dir = Files.createTempDir();
+        File log = new File(dir, "metrics.log");
+        testRegistry.newCounter(CloudWatchReporterTest.class, "TestCounter");
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withEMFLog(log, 1, 2).build();
+        for (int i = 0; i < 3; i++) {
+            reporter.run();
+        }
+        reporter.shutdown();
+        assertTrue(new File(dir, "metrics.log.1").exists());
+        assertTrue(new File(dir, "metrics.log.2").exists());
+        assertEquals(2, dir.listFiles().length);
+    }
+
+    @Test
+    public void testPredicateEvaluatedOncePerMetric() {
+        final AtomicInteger evaluations = new AtomicInteger();
+        MetricPredicate predicate = new MetricPredicate() {
+            @Override
+            public boolean matches(MetricName name, Metric metric) {
+                evaluations.incrementAndGet();
+                return name.getName().startsWith("Sent");
+            }
+        };
+        testRegistry.newCounter(CloudWatchReporterTest.class, "SentCounter");
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withPredicate(predicate)
+            .withInstanceIdDimension("flask", predicate).build();
+        reporter.run();
+        reporter.run();
+        // One evaluation per predicate for the existing metric
+        assertEquals(2, evaluations.get());
+        assertEquals(2, client.putData.size());
+
+        testRegistry.newCounter(CloudWatchReporterTest.class, "SkippedCounter");
+        client.putData.clear();
+        reporter.run();
+        assertEquals(4, evaluations.get());
+        assertEquals(1, client.putData.size());
+        assertEquals("flask", client.putData.get(0).getDimensions().get(0).getValue());
+
+        testRegistry.removeMetric(CloudWatchReporterTest.class, "SentCounter");
+        client.putData.clear();
+        reporter.run();
+        assertEquals(0, client.putData.size());
+        reporter.shutdown();
+    }
+
+    @Test
+    public void testReportersFromOneEnablerCacheMatchesSeparately() {
+        final AtomicInteger evaluations = new AtomicInteger();
+        MetricPredicate predicate = new MetricPredicate() {
+            @Override
+            public boolean matches(MetricName name, Metric metric) {
+                evaluations.incrementAndGet();
+                return true;
+            }
+        };
+        enabler.withJVMMemory(false).withInstanceIdDimension("flask", predicate);
+        CloudWatchReporter first = enabler.build();
+        CloudWatchReporter second = enabler.build();
+        first.shutdown();
+        testRegistry.newCounter(CloudWatchReporterTest.class, "TestCounter");
+        second.run();
+        second.run();
+        assertEquals("The second reporter's cache still hears about new metrics", 1, evaluations.get());
+        assertEquals("flask", client.putData.get(1).getDimensions().get(0).getValue());
+        second.shutdown();
+    }
+
+    @Test
+    public void testPredicateScopedDimensionAdder() {
+        final AtomicInteger evaluations = new AtomicInteger();
+        MetricPredicate countersOnly = new MetricPredicate() {
+            @Override
+            public boolean matches(MetricName name, Metric metric) {
+                evaluations.incrementAndGet();
+                return metric instanceof Counter;
+            }
+        };
+        DimensionAdder region = new DimensionAdder() {
+            @Override
+            public Collection<Dimension> generate(MetricName name, Metric metric) {
+                return generateJVMDimensions();
+            }
+
+            @Override
+            public Collection<Dimension> generateJVMDimensions() {
+                return Collections.singletonList(new Dimension().withName("Region").withValue("moon"));
+            }
+        };
+        testRegistry.newCounter(CloudWatchReporterTest.class, "TestCounter");
+        testRegistry.newMeter(CloudWatchReporterTest.class, "TestMeter", "tests", TimeUnit.SECONDS);
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withDimensionAdder(countersOnly, region).build();
+        reporter.run();
+        reporter.run();
+        assertEquals("The predicate is evaluated once per metric", 2, evaluations.get());
+        int checked = 0;
+        for (MetricDatum datum : client.putData) {
+            if (!datum.getMetricName().contains("Test")) {
+                continue; // JVM metrics always get the adder's JVM dimensions
+            }
+            checked++;
+            boolean counter = datum.getMetricName().endsWith("TestCounter");
+            assertEquals(datum.getMetricName(), counter, datum.getDimensions().contains(
+                    new Dimension().withName("Region").withValue("moon")));
+        }
+        assertTrue(checked > 2);
+        reporter.shutdown();
+    }
+
+    @Test
+    public void testFanOutToSinks() {
+        InMemorySink sink = new InMemorySink();
+        enabler.withSink(sink).build().run();
+        assertEquals(2, client.putData.size());
+        assertEquals(client.putData, sink.getData());
+    }
+
+    @Test
+    public void testStalledSinkIsolated() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        MetricSink stalled = new MetricSink() {
+            @Override
+            public void send(String namespace, List<MetricDatum> data) throws InterruptedException {
+                release.await();
+            }
+
+            @Override
+            public void close() {}
+        };
+        final CountDownLatch received = new CountDownLatch(3);
+        MetricSink counting = new MetricSink() {
+            @Override
+            public void send(String namespace, List<MetricDatum> data) {
+                received.countDown();
+            }
+
+            @Override
+            public void close() {}
+        };
+        CloudWatchReporter reporter = enabler.withCloudWatchEnabled(false).withSink(stalled).withSink(counting)
+            .withSinkQueues(3).build();
+        for (int i = 0; i < 3; i++) {
+            reporter.run();
+        }
+        assertTrue("Reports reach the other sink while one is stalled", received.await(5, TimeUnit.SECONDS));
+        release.countDown();
+        reporter.shutdown();
+    }
+
+    @Test
+    public void testDroppedReportsCounted() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        MetricSink stalled = new MetricSink() {
+            @Override
+            public void send(String namespace, List<MetricDatum> data) throws InterruptedException {
+                entered.countDown();
+                release.await();
+            }
+
+            @Override
+            public void close() {}
+        };
+        final List<List<MetricDatum>> received = new ArrayList<List<MetricDatum>>();
+        MetricSink recording = new MetricSink() {
+            @Override
+            public void send(String namespace, List<MetricDatum> data) {
+                synchronized (received) {
+                    received.add(data);
+                    received.notifyAll();
+                }
+            }
+
+            @Override
+            public void close() {}
+        };
+        CloudWatchReporter reporter = enabler.withCloudWatchEnabled(false).withSink(stalled).withSink(recording)
+            .withSinkQueues(1).build();
+        // The first report stalls the sink, the second fills its queue and the third is dropped
+        for (int i = 0; i < 4; i++) {
+            reporter.run();
+            if (i == 0) {
+                assertTrue(entered.await(5, TimeUnit.SECONDS));
+            }
+            awaitReports(received, i + 1);
+        }
+        release.countDown();
+        reporter.shutdown();
+        assertEquals(0.0, droppedReports(received.get(2)));
+        assertEquals(1.0, droppedReports(received.get(3)));
+    }
+
+    private static void awaitReports(List<List<MetricDatum>> received, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        synchronized (received) {
+            while (received.size() < count) {
+                long remaining = deadline - System.currentTimeMillis();
+                assertTrue("Timed out waiting for report " + count, remaining > 0);
+                received.wait(remaining);
+            }
+        }
+    }
+
+    private static double droppedReports(List<MetricDatum> data) {
+        for (MetricDatum datum : data) {
+            if (datum.getMetricName().equals("cloudwatch-reporter.dropped_reports")) {
+                return datum.getValue();
+            }
+        }
+        throw new AssertionError("No dropped report count in " + data);
+    }
+
+    @Test
+    public void testShutdownFailsReportsAHungSinkNeverSent() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        MetricSink hung = new MetricSink() {
+            @Override
+            public void send(String namespace, List<MetricDatum> data) {
+                entered.countDown();
+                // Ignores interrupts, like a sink stuck in a socket read
+                while (true) {
+                    try {
+                        release.await();
+                        return;
+                    } catch (InterruptedException e) {
+                        // Keep waiting
+                    }
+                }
+            }
+
+            @Override
+            public void close() {}
+        };
+        CloudWatchReporter reporter = enabler.withSink(hung).withSinkQueues(2).build();
+        Future<Void> sending = reporter.flushAsync();
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        Future<Void> queued = reporter.flushAsync();
+        try {
+            reporter.shutdown();
+            for (Future<Void> flush : Lists.newArrayList(sending, queued)) {
+                try {
+                    flush.get(1, TimeUnit.SECONDS);
+                    fail("The hung sink never took the report");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof IllegalStateException);
+                }
+            }
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testOverrunSkipsMissedReports() throws InterruptedException {
+        final AtomicInteger evaluations = new AtomicInteger();
+        testRegistry.newGauge(CloudWatchReporterTest.class, "SlowOnce", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                if (evaluations.incrementAndGet() == 1) {
+                    try {
+                        Thread.sleep(250);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return 1;
+            }
+        });
+        InMemorySink sink = new InMemorySink();
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withCloudWatchEnabled(false).withSink(sink)
+            .withOverrunPolicy(OverrunPolicy.SKIP).build();
+        reporter.start(50, TimeUnit.MILLISECONDS);
+        Thread.sleep(600);
+        reporter.shutdown();
+        double overruns = 0, skipped = 0;
+        for (MetricDatum datum : sink.getData()) {
+            if (datum.getMetricName().equals("cloudwatch-reporter.overruns")) {
+                overruns += datum.getValue();
+            } else if (datum.getMetricName().equals("cloudwatch-reporter.skipped_reports")) {
+                skipped += datum.getValue();
+            }
+        }
+        assertEquals(1.0, overruns);
+        assertTrue("The reports missed while the slow one ran are skipped", skipped >= 3);
+    }
+
+    @Test
+    public void testOverrunCoalescesMissedReports() throws InterruptedException {
+        final AtomicInteger evaluations = new AtomicInteger();
+        testRegistry.newGauge(CloudWatchReporterTest.class, "SlowOnce", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                if (evaluations.incrementAndGet() == 1) {
+                    try {
+                        Thread.sleep(250);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return 1;
+            }
+        });
+        InMemorySink sink = new InMemorySink();
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withCloudWatchEnabled(false).withSink(sink)
+            .withOverrunPolicy(OverrunPolicy.COALESCE).build();
+        reporter.start(50, TimeUnit.MILLISECONDS);
+        Thread.sleep(600);
+        reporter.shutdown();
+        int lateReports = 0;
+        double skipped = 0;
+        for (MetricDatum datum : sink.getData()) {
+            if (datum.getMetricName().equals("cloudwatch-reporter.lag") && datum.getValue() >= 50) {
+                lateReports++;
+            } else if (datum.getMetricName().equals("cloudwatch-reporter.skipped_reports")) {
+                skipped += datum.getValue();
+            }
+        }
+        assertTrue("A single late report runs in place of the missed ones", lateReports >= 1);
+        assertTrue("The rest of the missed reports are skipped", skipped >= 2);
+    }
+
+    @Test
+    public void testShedLowPriorityMetrics() throws InterruptedException {
+        final AtomicInteger evaluations = new AtomicInteger();
+        testRegistry.newGauge(CloudWatchReporterTest.class, "SlowOnce", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                if (evaluations.incrementAndGet() == 1) {
+                    try {
+                        Thread.sleep(250);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return 1;
+            }
+        });
+        final AtomicInteger lowPriorityEvaluations = new AtomicInteger();
+        testRegistry.newGauge(CloudWatchReporterTest.class, "LowPriority", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                return lowPriorityEvaluations.incrementAndGet();
+            }
+        });
+        InMemorySink sink = new InMemorySink();
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withCloudWatchEnabled(false).withSink(sink)
+            .withOverrunPolicy(OverrunPolicy.SHED)
+            .withGaugeThreads(1, 1, TimeUnit.SECONDS)
+            .withLowPriorityMetrics(new MetricPredicate() {
+                @Override
+                public boolean matches(MetricName name, Metric metric) {
+                    return name.getName().equals("LowPriority");
+                }
+            }).build();
+        reporter.start(50, TimeUnit.MILLISECONDS);
+        Thread.sleep(600);
+        reporter.shutdown();
+        double shed = 0;
+        int reports = 0;
+        for (MetricDatum datum : sink.getData()) {
+            if (datum.getMetricName().equals("cloudwatch-reporter.shed_metrics")) {
+                shed += datum.getValue();
+                reports++;
+            }
+        }
+        assertTrue("The low priority gauge is shed while reports are behind", shed >= 1);
+        assertEquals("Shed gauges aren't evaluated", reports, lowPriorityEvaluations.get() + (int) shed);
+    }
+
+    @Test
+    public void testScopedCountersRolledUp() {
+        for (int i = 1; i <= 3; i++) {
+            testRegistry.newCounter(new MetricName("group", "type", "Requests", "tenant" + i)).inc(i);
+        }
+        testRegistry.newCounter(new MetricName("group", "type", "Unscoped")).inc();
+        enabler.withJVMMemory(false).withRollup(new RollupRule("group", null, "Req.*").withTopScopes(1)).build().run();
+        assertEquals(Sets.newHashSet("group.type.Requests", "group.type.tenant3.Requests", "group.type.Unscoped"),
+                     client.latestPutByName.keySet());
+        assertEquals(6.0, client.latestPutByName.get("group.type.Requests").getValue());
+        assertEquals(3.0, client.latestPutByName.get("group.type.tenant3.Requests").getValue());
+    }
+
+    @Test
+    public void testScopedTimersRolledUp() {
+        for (int i = 0; i < 2; i++) {
+            Timer timer = testRegistry.newTimer(new MetricName("group", "type", "Latency", "endpoint" + i),
+                                                TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+            for (int j = 0; j < 100; j++) {
+                timer.update(i * 100 + j, TimeUnit.MILLISECONDS);
+            }
+        }
+        enabler.withJVMMemory(false).withOneMinuteRate(false).withTimerSummary(true).withPercentiles(.5)
+            .withRollup(new RollupRule(null, null, null)).build().run();
+        assertEquals(Sets.newHashSet("group.type.Latency.median", "group.type.Latency.min", "group.type.Latency.max",
+                                     "group.type.Latency.mean", "group.type.Latency.stddev"),
+                     client.latestPutByName.keySet());
+        assertEquals(0.0, client.latestPutByName.get("group.type.Latency.min").getValue());
+        assertEquals(199.0, client.latestPutByName.get("group.type.Latency.max").getValue());
+        assertEquals(99.5, client.latestPutByName.get("group.type.Latency.mean").getValue(), .001);
+        assertEquals(57.879, client.latestPutByName.get("group.type.Latency.stddev").getValue(), .001);
+        assertEquals(StandardUnit.Milliseconds.toString(), client.latestPutByName.get("group.type.Latency.median").getUnit());
+    }
+
+    @Test
+    public void testDatumBudgetRotatesDeferredSeries() {
+        for (String name : new String[] {"Important", "A", "B", "C", "D"}) {
+            testRegistry.newCounter(CloudWatchReporterTest.class, name).inc();
+        }
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withDatumBudget(3)
+            .withPriority(new MetricPredicate() {
+                @Override
+                public boolean matches(MetricName name, Metric metric) {
+                    return name.getName().equals("Important");
+                }
+            }, 100).build();
+        Set<String> sent = Sets.newHashSet();
+        for (int i = 0; i < 4; i++) {
+            client.putData.clear();
+            reporter.run();
+            assertEquals("Two counters and the deferred count fill the budget", 3, client.putData.size());
+            assertEquals(3.0, client.latestPutByName.get("cloudwatch-reporter.deferred").getValue());
+            Set<String> names = Sets.newHashSet();
+            for (MetricDatum datum : client.putData) {
+                names.add(datum.getMetricName());
+            }
+            assertTrue(names.contains("com.plausiblelabs.metrics.reporting.CloudWatchReporterTest.Important"));
+            sent.addAll(names);
+        }
+        assertEquals("Each deferred counter is sent in turn", 6, sent.size());
+    }
+
+    @Test
+    public void testRequestBudgetIsHardCap() {
+        for (int i = 0; i < 20; i++) {
+            testRegistry.newCounter(CloudWatchReporterTest.class, "Counter" + i).inc(i);
+        }
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withRequestBudget(1).build();
+        for (int i = 0; i < 3; i++) {
+            client.requests = 0;
+            reporter.run();
+            assertEquals("The deferred count fits in the budget", 1, client.requests);
+        }
+        assertEquals(1.0, client.latestPutByName.get("cloudwatch-reporter.deferred").getValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDatumBudgetTooSmallForASeries() {
+        enabler.withDatumBudget(1);
+    }
+
+    @Test
+    public void testSmallestDatumBudgetSendsEverySeries() {
+        for (int i = 0; i < 3; i++) {
+            testRegistry.newCounter(CloudWatchReporterTest.class, "Counter" + i).inc(i + 1);
+        }
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).withDatumBudget(2).build();
+        for (int i = 0; i < 3; i++) {
+            reporter.run();
+        }
+        assertEquals(6, client.putData.size());
+        assertEquals("Each series gets its turn", 3 + 1, client.latestPutByName.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyRequestBudget() {
+        enabler.withRequestBudget(0);
+    }
+
+    @Test
+    public void testFlush() throws Exception {
+        Counter counter = testRegistry.newCounter(CloudWatchReporterTest.class, "TestCounter");
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).build();
+        counter.inc(7);
+        reporter.flush();
+        assertEquals(7.0, client.latestPutByName.get("com.plausiblelabs.metrics.reporting.CloudWatchReporterTest.TestCounter").getValue());
+    }
+
+    @Test
+    public void testConcurrentFlushesCoalesced() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger evaluations = new AtomicInteger();
+        testRegistry.newGauge(CloudWatchReporterTest.class, "Blocking", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                if (evaluations.incrementAndGet() == 1) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return 1;
+            }
+        });
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).build();
+        Future<Void> first = reporter.flushAsync();
+        while (evaluations.get() == 0) {
+            Thread.sleep(5);
+        }
+        Future<Void> second = reporter.flushAsync();
+        Future<Void> third = reporter.flushAsync();
+        assertTrue("Flushes requested during a report start a new one", first != second);
+        assertTrue("Flushes waiting to start are combined", second == third);
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        third.get(5, TimeUnit.SECONDS);
+        assertEquals(2, evaluations.get());
+        assertEquals(2, client.putData.size());
+    }
+
+    @Test
+    public void testFlushDuringShutdown() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger evaluations = new AtomicInteger();
+        testRegistry.newGauge(CloudWatchReporterTest.class, "Blocking", new Gauge<Integer>() {
+            @Override
+            public Integer value() {
+                if (evaluations.incrementAndGet() == 1) {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return 1;
+            }
+        });
+        final CloudWatchReporter reporter = enabler.withJVMMemory(false).withSinkQueues(1).build();
+        Future<Void> first = reporter.flushAsync();
+        while (evaluations.get() == 0) {
+            Thread.sleep(5);
+        }
+        Future<Void> second = reporter.flushAsync();
+        Thread shutdown = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                reporter.shutdown();
+            }
+        });
+        shutdown.start();
+        // Let the shutdown start while the first flush is still gathering
+        Thread.sleep(100);
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+        try {
+            second.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            // Expected, as the reporter shut down before the flush started
+        }
+        shutdown.join(5000);
+        // The gauge and the dropped report count
+        assertEquals(2, client.putData.size());
+    }
+
+    @Test
+    public void testOneShotSendsRequestsInParallel() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            testRegistry.newCounter(CloudWatchReporterTest.class, "Counter" + i).inc(i);
+        }
+        // Holds each request until all three are in flight, or a second has passed
+        client.awaitConcurrentRequests = 3;
+        CloudWatchReporter reporter = enabler.withJVMMemory(false).enableOneShot(5, TimeUnit.SECONDS);
+        try {
+            reporter.flush();
+            assertEquals(3, client.requests);
+            assertEquals("The requests overlap", 3, client.maxConcurrentRequests);
+            assertEquals(50, client.putData.size());
+            assertEquals(49.0, client.latestPutByName.get("com.plausiblelabs.metrics.reporting.CloudWatchReporterTest.Counter49").getValue());
+        } finally {
+            // Shutting down removes the exit hook
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void testExitHookGivesUpAtDeadline() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        MetricSink hung = new MetricSink() {
+            @Override
+            public void send(String namespace, List<MetricDatum> data) throws InterruptedException {
+                release.await();
+            }
+
+            @Override
+            public void close() {}
+        };
+        CloudWatchReporter reporter = enabler.withSink(hung).enableOneShot(200, TimeUnit.MILLISECONDS);
+        try {
+            long start = System.nanoTime();
+            // Runs the hook's work on this thread, as the JVM would on its own at exit
+            reporter.exitHook().run();
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("Waited " + elapsedMillis + "ms", elapsedMillis >= 200 && elapsedMillis < 2000);
+        } finally {
+            release.countDown();
+            reporter.shutdown();
+        }
+    }
+
+    @Test
+    public void testJVMMemoryDetail() {
+        ByteBuffer direct = ByteBuffer.allocateDirect(1024);
+        enabler.withJVMMemory(false).withJVMMemoryDetail(true).withInstanceIdDimension("flask").build().run();
+        assertEquals(1024, direct.capacity());
+        MetricDatum capacity = client.latestPutByName.get("jvm.memory.buffer_pool.direct.capacity");
+        assertTrue("The direct buffer is counted", capacity.getValue() >= 1024);
+        assertEquals(StandardUnit.Bytes.toString(), capacity.getUnit());
+        assertTrue(client.latestPutByName.containsKey("jvm.memory.pool.metaspace.peak_used"));
+        assertTrue(client.latestPutByName.containsKey("jvm.memory.code_cache.used"));
+        for (MetricDatum datum : client.putData) {
+            assertTrue(datum.getMetricName().startsWith("jvm.memory."));
+            assertEquals("flask", datum.getDimensions().get(0).getValue());
+        }
+    }
+
+    @Test
+    public void testNanosecondTimerKeepsSubMicrosecondPrecision() {
+        Timer timer = testRegistry.newTimer(CloudWatchReporterTest.class, "NanoTimer", TimeUnit.NANOSECONDS, TimeUnit.SECONDS);
+        for (int i = 0; i < 100; i++) {
+            timer.update(850, TimeUnit.NANOSECONDS);
+        }
+        enabler.withJVMMemory(false).withOneMinuteRate(false).withPercentiles(.5, .99).build().run();
+        MetricDatum median = client.latestPutByName.get("com.plausiblelabs.metrics.reporting.CloudWatchReporterTest.NanoTimer.median");
+        assertEquals(StandardUnit.Microseconds.toString(), median.getUnit());
+        assertEquals(0.85, median.getValue(), 1E-12);
+        assertEquals(0.85, client.latestPutByName.get("com.plausiblelabs.metrics.reporting.CloudWatchReporterTest.NanoTimer_percentile_0.99").getValue(), 1E-12);
+    }
 }
@@ -19,13 +19,35 @@ import com.google.common.collect.Maps;
 public class DummyCloudWatchClient extends AmazonCloudWatchClient {
     public final List<MetricDatum> putData = Lists.newArrayList();
     public final Map<String, MetricDatum> latestPutByName = Maps.newHashMap();
+    public int requests;
+    /** The most calls to putMetricData that were running at once. */
+    public int maxConcurrentRequests;
+    /** If set, each call waits up to a second for this many calls to be running at once before returning. */
+    public int awaitConcurrentRequests;
+    private int concurrentRequests;
 
     public DummyCloudWatchClient() {
         super((AWSCredentials)null);
     }
 
     @Override
-    public void putMetricData(PutMetricDataRequest req) throws AmazonServiceException, AmazonClientException {
+    public synchronized void putMetricData(PutMetricDataRequest req) throws AmazonServiceException, AmazonClientException {
+        requests++;
+        maxConcurrentRequests = Math.max(maxConcurrentRequests, ++concurrentRequests);
+        notifyAll();
+        try {
+            // Waiting gives up the lock, so other calls can run in the meantime
+            long deadline = System.currentTimeMillis() + 1000;
+            long remaining;
+            while (maxConcurrentRequests < awaitConcurrentRequests
+                && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                wait(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            concurrentRequests--;
+        }
         putData.addAll(req.getMetricData());
         for (MetricDatum datum : req.getMetricData()) {
             latestPutByName.put(datum.getMetricName(), datum);
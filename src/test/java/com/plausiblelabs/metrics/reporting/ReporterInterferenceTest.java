@@ -0,0 +1,230 @@
+/*
+ * Copyright Iconology, Inc. 2012. All rights reserved.
+ */
+
+package com.plausiblelabs.metrics.reporting;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.cloudwatch.AmazonCloudWatchClient;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * <p>Measures how much a running reporter slows down the application threads updating metrics, rather than how fast
+ * the reporter itself is. Threads update timers and histograms in a large registry as fast as they can while timing
+ * each update, first with no reporter and then with one reporting to a local fake CloudWatch endpoint. For each phase
+ * it prints the update latency percentiles along with GC, safepoint and CPU time.</p>
+ *
+ * <p>Excluded from the default build. Run with <code>mvn test -Pinterference</code>, setting
+ * <code>interference.threads</code>, <code>interference.metrics</code>, <code>interference.seconds</code> and
+ * <code>interference.reportMillis</code> with <code>-D</code> to change the load. The results are also written to
+ * <code>target/interference-report.txt</code>.</p>
+ */
+public class ReporterInterferenceTest {
+    private static final String RESPONSE = "<PutMetricDataResponse xmlns=\"http://monitoring.amazonaws.com/doc/2010-08-01/\">"
+        + "<ResponseMetadata><RequestId>interference</RequestId></ResponseMetadata></PutMetricDataResponse>";
+
+    private final int threads = Integer.getInteger("interference.threads", 4);
+    private final int metricCount = Integer.getInteger("interference.metrics", 2000);
+    private final int seconds = Integer.getInteger("interference.seconds", 20);
+    private final int reportMillis = Integer.getInteger("interference.reportMillis", 1000);
+
+    private final MetricsRegistry registry = new MetricsRegistry();
+    private final Timer[] timers = new Timer[metricCount / 2];
+    private final Histogram[] histograms = new Histogram[metricCount - metricCount / 2];
+    private final AtomicLong requests = new AtomicLong();
+
+    /** The JVM-wide counters sampled at the start and end of each phase. */
+    private static class Counters {
+        long gcCount, gcMillis, safepoints, safepointMillis, cpuNanos;
+
+        static Counters sample() {
+            Counters counters = new Counters();
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                counters.gcCount += gc.getCollectionCount();
+                counters.gcMillis += gc.getCollectionTime();
+            }
+            counters.safepoints = safepointCounter("getSafepointCount");
+            counters.safepointMillis = safepointCounter("getTotalSafepointTime");
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            if (os instanceof com.sun.management.OperatingSystemMXBean) {
+                counters.cpuNanos = ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+            }
+            return counters;
+        }
+
+        /** Reads a HotSpot safepoint counter, or returns -1 if the internal MBean isn't accessible. */
+        private static long safepointCounter(String method) {
+            try {
+                Object runtime = Class.forName("sun.management.ManagementFactoryHelper")
+                    .getMethod("getHotspotRuntimeMBean").invoke(null);
+                Method getter = Class.forName("sun.management.HotspotRuntimeMBean").getMethod(method);
+                return (Long) getter.invoke(runtime);
+            } catch (Throwable t) {
+                return -1;
+            }
+        }
+    }
+
+    private class Updater extends Thread {
+        final LogHistogram latencies = new LogHistogram();
+        volatile boolean running = true;
+        private final Random random;
+
+        Updater(int index) {
+            super("interference-updater-" + index);
+            random = new Random(index);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                int metric = random.nextInt(metricCount);
+                long value = random.nextInt(1000000);
+                long start = System.nanoTime();
+                if (metric < timers.length) {
+                    timers[metric].update(value, TimeUnit.NANOSECONDS);
+                } else {
+                    histograms[metric - timers.length].update(value);
+                }
+                latencies.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    @Test
+    public void measureReporterInterference() throws Exception {
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = registry.newTimer(ReporterInterferenceTest.class, "Timer" + i);
+        }
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = registry.newHistogram(ReporterInterferenceTest.class, "Histogram" + i, true);
+        }
+        HttpServer server = startFakeCloudWatch();
+        try {
+            List<String> results = new ArrayList<String>();
+            results.add(String.format("%d threads updating %d metrics for %ds per phase, reporting every %dms",
+                                      threads, metricCount, seconds, reportMillis));
+            results.add(String.format("%-12s %12s %8s %8s %8s %10s %6s %8s %11s %9s %8s", "phase", "updates",
+                                      "p50 ns", "p99 ns", "p99.9 ns", "max ns", "GCs", "GC ms", "safepoints",
+                                      "sp ms", "CPU ms"));
+            // Warm up so the JIT settles before either measured phase
+            runPhase("warmup", null, Math.max(1, seconds / 4));
+            results.add(runPhase("reporter off", null, seconds));
+            String endpoint = "http://localhost:" + server.getAddress().getPort();
+            results.add(runPhase("reporter on", endpoint, seconds));
+            results.add(String.format("The reporter made %d requests", requests.get()));
+            report(results);
+            assertTrue("The reporter sent to the fake endpoint", requests.get() > 0);
+        } finally {
+            server.stop(0);
+            registry.shutdown();
+        }
+    }
+
+    private String runPhase(String name, String endpoint, int phaseSeconds) throws InterruptedException {
+        CloudWatchReporter reporter = null;
+        if (endpoint != null) {
+            AmazonCloudWatchClient client = new AmazonCloudWatchClient(new BasicAWSCredentials("fake", "fake"));
+            client.setEndpoint(endpoint);
+            reporter = new CloudWatchReporter.Enabler("interference", client)
+                .withRegistry(registry)
+                .withTimerSummary(true)
+                .withHistogramSummary(true)
+                .withJVMGC(true)
+                .build();
+            reporter.start(reportMillis, TimeUnit.MILLISECONDS);
+        }
+        Counters before = Counters.sample();
+        List<Updater> updaters = new ArrayList<Updater>();
+        for (int i = 0; i < threads; i++) {
+            Updater updater = new Updater(i);
+            updaters.add(updater);
+            updater.start();
+        }
+        Thread.sleep(TimeUnit.SECONDS.toMillis(phaseSeconds));
+        LogHistogram latencies = new LogHistogram();
+        for (Updater updater : updaters) {
+            updater.running = false;
+            updater.join();
+            latencies.merge(updater.latencies);
+        }
+        Counters after = Counters.sample();
+        if (reporter != null) {
+            // Let a report that's underway finish, so starved reporters still reach the endpoint
+            reporter.shutdown(1, TimeUnit.MINUTES);
+        }
+        return String.format("%-12s %12d %8d %8d %8d %10d %6d %8d %11s %9s %8d", name, latencies.count(),
+                             latencies.percentile(.5), latencies.percentile(.99), latencies.percentile(.999),
+                             latencies.max(), after.gcCount - before.gcCount, after.gcMillis - before.gcMillis,
+                             after.safepoints < 0 ? "n/a" : String.valueOf(after.safepoints - before.safepoints),
+                             after.safepointMillis < 0 ? "n/a" : String.valueOf(after.safepointMillis - before.safepointMillis),
+                             TimeUnit.NANOSECONDS.toMillis(after.cpuNanos - before.cpuNanos));
+    }
+
+    /** Answers every request like a successful PutMetricData. */
+    private HttpServer startFakeCloudWatch() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                byte[] discard = new byte[8192];
+                while (in.read(discard) != -1) {
+                    // Read the whole request as CloudWatch would
+                }
+                requests.incrementAndGet();
+                byte[] response = RESPONSE.getBytes("UTF-8");
+                exchange.getResponseHeaders().set("Content-Type", "text/xml");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        server.start();
+        return server;
+    }
+
+    private void report(List<String> results) throws IOException {
+        File target = new File("target");
+        FileWriter writer = target.isDirectory() ? new FileWriter(new File(target, "interference-report.txt")) : null;
+        try {
+            for (String line : results) {
+                System.out.println(line);
+                if (writer != null) {
+                    writer.write(line);
+                    writer.write('\n');
+                }
+            }
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
+    }
+}